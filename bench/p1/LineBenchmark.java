@@ -0,0 +1,56 @@
+package p1;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of the {@link Line} editing operations: typing a paragraph glyph by
+ * glyph, inserting it at once, and erasing it.
+ *
+ * @author Alba Mendez
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LineBenchmark {
+
+    static final int WIDTH = 80, HEIGHT = 25;
+
+    String text;
+    String[] glyphs;
+
+    @Setup
+    public void setup() {
+        text = SyntheticInput.paste(WIDTH * HEIGHT / 2, 1)
+                .replace('\r', '\n');
+        glyphs = new String[text.length()];
+        for (int i = 0; i < glyphs.length; i++)
+            glyphs[i] = String.valueOf(text.charAt(i));
+    }
+
+    @Benchmark
+    public Line typeGlyphs() {
+        Line line = new Line(WIDTH, HEIGHT);
+        for (String glyph : glyphs) {
+            if (glyph.equals("\n")) line.enterLine();
+            else line.enterGlyph(glyph);
+        }
+        return line;
+    }
+
+    @Benchmark
+    public Line insertText() {
+        Line line = new Line(WIDTH, HEIGHT);
+        line.insertText(text);
+        return line;
+    }
+
+    @Benchmark
+    public Line typeAndErase() {
+        Line line = typeGlyphs();
+        line.moveCaret(0, 0);
+        while (line.delete()) ;
+        return line;
+    }
+
+}
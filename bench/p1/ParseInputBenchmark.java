@@ -0,0 +1,39 @@
+package p1;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput of {@link EditableBufferedReader#parseInput} over pastes and
+ * mouse report floods, fed in chunks (see {@link SyntheticInput}).
+ *
+ * @author Alba Mendez
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParseInputBenchmark {
+
+    @Param({"65536", "1048576"})
+    int size;
+
+    String paste;
+    String mouseFlood;
+
+    @Setup
+    public void setup() {
+        paste = SyntheticInput.paste(size, 1);
+        mouseFlood = SyntheticInput.mouseFlood(size, 1);
+    }
+
+    @Benchmark
+    public long paste() {
+        return SyntheticInput.run(paste, 4096);
+    }
+
+    @Benchmark
+    public long mouseFlood() {
+        return SyntheticInput.run(mouseFlood, 4096);
+    }
+
+}
@@ -0,0 +1,70 @@
+package p1;
+
+import java.util.Random;
+
+/**
+ * Synthetic terminal input for the benchmarks: large pastes and mouse
+ * report floods, and a driver feeding them through
+ * {@link EditableBufferedReader#parseInput} in chunks.
+ *
+ * @author Alba Mendez
+ */
+public class SyntheticInput {
+
+    static class CountingConsumer implements EditableBufferedReader.ParsingConsumer {
+        long events;
+        public void handleCSI(ControlSequence seq) { events += seq.getParameter(0, 1); }
+        public void handleSS(int set, char c) { events++; }
+        public void handleTwoByte(char c) { events++; }
+        public void handleOneByte(char c) { events++; }
+        public void handleCodepoint(int code) { events++; }
+    }
+
+    /** Generate pasted text: mostly ASCII words, some non-BMP glyphs and newlines **/
+    public static String paste(int length, long seed) {
+        Random random = new Random(seed);
+        StringBuilder r = new StringBuilder(length + 8);
+        while (r.length() < length) {
+            int x = random.nextInt(100);
+            if (x < 80) r.append((char) ('a' + random.nextInt(26)));
+            else if (x < 92) r.append(' ');
+            else if (x < 96) r.append('\r');
+            else if (x < 98) r.append('ñ');
+            else r.appendCodePoint(0x1F600 + random.nextInt(64));
+        }
+        return r.toString();
+    }
+
+    /** Generate SGR mouse motion reports **/
+    public static String mouseFlood(int length, long seed) {
+        Random random = new Random(seed);
+        StringBuilder r = new StringBuilder(length + 32);
+        while (r.length() < length)
+            r.append("\u001b[<35;").append(1 + random.nextInt(300))
+                    .append(';').append(1 + random.nextInt(80)).append('M');
+        return r.toString();
+    }
+
+    /** Parse all of the input, fed in chunks like the input pump does **/
+    public static long run(String input, int chunk) {
+        InputBuffer buffer = new InputBuffer(chunk);
+        ControlSequence seq = new ControlSequence();
+        CountingConsumer consumer = new CountingConsumer();
+        char[] chars = input.toCharArray();
+        int fed = 0;
+        while (fed < chars.length || !buffer.isEmpty()) {
+            if (fed < chars.length) {
+                int n = Math.min(chunk, chars.length - fed);
+                buffer.append(chars, fed, n);
+                fed += n;
+            }
+            boolean more = fed < chars.length;
+            int consumed;
+            while (!buffer.isEmpty() && (consumed = EditableBufferedReader.parseInput(
+                    buffer, 0, more, consumer, seq)) != -1)
+                buffer.consume(consumed);
+        }
+        return consumer.events;
+    }
+
+}
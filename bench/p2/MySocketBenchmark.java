@@ -0,0 +1,101 @@
+package p2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of line parsing and printing in {@link MySocket}, over an in-memory
+ * socket so that the network isn't measured.
+ *
+ * @author Alba Mendez
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MySocketBenchmark {
+
+    /** Input stream that repeats the passed data forever **/
+    static class CyclicInputStream extends InputStream {
+        private final byte[] data;
+        private int position;
+
+        CyclicInputStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            int b = data[position] & 0xFF;
+            position = (position + 1) % data.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int n = Math.min(len, data.length - position);
+            System.arraycopy(data, position, b, off, n);
+            position = (position + n) % data.length;
+            return n;
+        }
+    }
+
+    /** Unconnected socket with in-memory streams **/
+    static class MemorySocket extends Socket {
+        private final InputStream input;
+        private final OutputStream output;
+
+        MemorySocket(InputStream input, OutputStream output) {
+            this.input = input;
+            this.output = output;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return input;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return output;
+        }
+    }
+
+    @Param({"16", "256"})
+    int lineLength;
+
+    MySocket socket;
+    String line;
+
+    @Setup
+    public void setup() throws Exception {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            lines.append("nick").append(i % 10).append(": ");
+            for (int j = 0; j < lineLength; j++)
+                lines.append((char) ('a' + (i + j) % 26));
+            lines.append('\n');
+        }
+        byte[] data = lines.toString().getBytes(StandardCharsets.UTF_8);
+        socket = new MySocket(new MemorySocket(new CyclicInputStream(data), new OutputStream() {
+            public void write(int b) {}
+            public void write(byte[] b, int off, int len) {}
+        }));
+        line = lines.substring(0, lines.indexOf("\n") + 1);
+    }
+
+    @Benchmark
+    public String readLine() {
+        return socket.readLine();
+    }
+
+    @Benchmark
+    public void print() {
+        socket.print(line);
+    }
+
+}
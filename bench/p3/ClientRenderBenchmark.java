@@ -0,0 +1,90 @@
+package p3;
+
+import java.awt.EventQueue;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.swing.JList;
+import javax.swing.JScrollPane;
+import org.openjdk.jmh.annotations.*;
+import p3.MessageHistory.Entry;
+
+/**
+ * Messages per second rendered by the message list of {@link Client}, when
+ * adding them one by one and in batches like the drain task does. Each
+ * batch is added to the history, then the visible part of the list is
+ * scrolled to the bottom and painted. Each invocation renders 10000
+ * messages, into a scrollback of 5000; one in ten is long enough to wrap.
+ *
+ * @author Alba Mendez
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ClientRenderBenchmark {
+
+    static final int MESSAGES = 10000;
+
+    @Param({"1", "50", "500"})
+    int batchSize;
+
+    Entry[] entries;
+    MessageHistory history;
+    JList<Entry> list;
+    JScrollPane scrollPane;
+    Graphics2D graphics;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        entries = new Entry[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            String nick = "user" + (i % 37);
+            if (i % 20 == 19)
+                entries[i] = new Entry(null, nick + " has joined the room");
+            else if (i % 10 == 5)
+                entries[i] = new Entry(nick, "a longer message, number " + i + ", which has to be"
+                        + " wrapped over a few lines to fit in the width of the list áé");
+            else
+                entries[i] = new Entry(nick, "message number " + i + " with some text áé");
+        }
+
+        history = new MessageHistory(Client.DEFAULT_SCROLLBACK);
+        list = new JList<>(history);
+        Client.MessageRenderer.install(list);
+        scrollPane = new JScrollPane(list);
+        scrollPane.setSize(400, 600);
+        graphics = new BufferedImage(400, 600, BufferedImage.TYPE_INT_RGB).createGraphics();
+        // Give the list its width, and let the renderer see it before measuring
+        scrollPane.doLayout();
+        scrollPane.getViewport().doLayout();
+        EventQueue.invokeAndWait(() -> {});
+    }
+
+    @Setup(Level.Invocation)
+    public void clear() {
+        history.clear();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public MessageHistory render() {
+        List<Entry> batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < MESSAGES; i++) {
+            batch.add(entries[i]);
+            if (batch.size() == batchSize || i + 1 == MESSAGES) {
+                history.addAll(batch);
+                batch.clear();
+                // (not displayable, so lay out by hand)
+                scrollPane.doLayout();
+                scrollPane.getViewport().doLayout();
+                list.ensureIndexIsVisible(history.getSize() - 1);
+                scrollPane.paint(graphics);
+            }
+        }
+        return history;
+    }
+
+}
@@ -0,0 +1,162 @@
+package p3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import org.openjdk.jmh.annotations.*;
+import p2.ChatLog;
+import p2.Protocol;
+
+/**
+ * CPU cost of compressing chat traffic against the bytes it saves. Each
+ * operation compresses one message of a trace (as it'd be sent to a peer,
+ * with a sync flush), and the counters give the uncompressed and compressed
+ * bytes per second, so their ratio is the size of the compressed traffic.
+ *
+ * <p>Modes: {@code stream} keeps the context for the whole connection
+ * ({@link DeflateCodec}, what the servers do), {@code message} compresses
+ * each message on its own, and {@code none} just copies it (baseline).
+ *
+ * <p>The trace is synthetic by default. To use a recorded one, pass the
+ * directory of a {@link ChatLog} with {@code -p log=<directory>}.
+ *
+ * @author Alba Mendez
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CompressionBenchmark {
+
+    @Param({"stream", "message", "none"})
+    String mode;
+
+    @Param({"1", "6"})
+    int level;
+
+    @Param({""})
+    String log;
+
+    byte[][] trace;
+    int next;
+    DeflateCodec codec;
+    Deflater deflater;
+    byte[] buffer = new byte[16384];
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytesIn, bytesOut;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesIn = bytesOut = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        trace = log.isEmpty() ? syntheticTrace(20000) : recordedTrace(log);
+        codec = new DeflateCodec(level);
+        deflater = new Deflater(level, true);
+    }
+
+    @TearDown
+    public void tearDown() {
+        codec.end();
+        deflater.end();
+    }
+
+    /** Messages in a chat log, each one a frame **/
+    static byte[][] recordedTrace(String directory) {
+        ChatLog chatLog = new ChatLog(Paths.get(directory));
+        try {
+            List<byte[]> messages = new ArrayList<>();
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            for (ChatLog.Region region : chatLog.regions(0, Long.MAX_VALUE)) {
+                ByteBuffer buf = ByteBuffer.allocate((int) region.count);
+                try {
+                    while (buf.hasRemaining())
+                        if (region.channel.read(buf, region.position + buf.position()) < 0)
+                            throw new IllegalStateException("Truncated log");
+                } finally {
+                    region.release();
+                }
+                for (byte b : buf.array()) {
+                    line.write(b);
+                    if (b == '\n') {
+                        messages.add(line.toByteArray());
+                        line.reset();
+                    }
+                }
+            }
+            if (messages.isEmpty())
+                throw new IllegalArgumentException("Empty chat log");
+            return messages.toArray(new byte[0][]);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            chatLog.close();
+        }
+    }
+
+    /**
+     * Messages from a few nicknames, with words picked from a small
+     * vocabulary (skewed towards the first ones, as in real text).
+     */
+    static byte[][] syntheticTrace(int count) {
+        String[] nicks = { "alice", "bob", "carol", "dave", "erin", "frank", "grace", "heidi" };
+        String[] words = ("the to and a of is it that you in i for on this be with not have are "
+                + "was but so what just do we can if at my no all like about think yes server "
+                + "message chat connection file time now know get one out there would when up "
+                + "really going see how well more some people good right then here make sure "
+                + "anyone else tried restarting it looks fine thanks lol ok").split(" ");
+        Random random = new Random(42);
+        byte[][] result = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            StringBuilder text = new StringBuilder();
+            int length = 1 + random.nextInt(16);
+            for (int w = 0; w < length; w++) {
+                double r = random.nextDouble();
+                text.append(w > 0 ? " " : "").append(words[(int) (r * r * words.length)]);
+            }
+            String nick = nicks[random.nextInt(nicks.length)];
+            result[i] = Protocol.message(nick, text.toString()).bytes(true);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public int compress(Bytes bytes) {
+        byte[] message = trace[next];
+        next = (next + 1) % trace.length;
+        int size;
+        switch (mode) {
+            case "stream":
+                size = codec.compress(message, 0, message.length).length;
+                break;
+            case "message":
+                deflater.reset();
+                deflater.setInput(message);
+                size = 0;
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    size += n;
+                } while (n == buffer.length);
+                break;
+            default:
+                System.arraycopy(message, 0, buffer, 0, message.length);
+                size = message.length;
+        }
+        bytes.bytesIn += message.length;
+        bytes.bytesOut += size;
+        return size;
+    }
+
+}
@@ -0,0 +1,43 @@
+package p3;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import p3.Server.EventEmitter;
+
+/**
+ * Cost of {@link EventEmitter#emit} with one or several handlers.
+ *
+ * @author Alba Mendez
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EventEmitterBenchmark {
+
+    @Param({"1", "4"})
+    int handlers;
+
+    EventEmitter emitter;
+    Blackhole blackhole;
+    Object value = new Object();
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        emitter = new EventEmitter();
+        for (int i = 0; i < handlers; i++)
+            emitter.on("data", (Object x) -> this.blackhole.consume(x));
+    }
+
+    @Benchmark
+    public boolean emit() {
+        return emitter.emit("data", value);
+    }
+
+    @Benchmark
+    public boolean emitUnhandled() {
+        return emitter.emit("other", value);
+    }
+
+}
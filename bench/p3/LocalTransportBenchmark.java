@@ -0,0 +1,89 @@
+package p3;
+
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import p2.UnixSockets;
+
+/**
+ * Round-trip latency of local clients over TCP loopback against a Unix
+ * domain socket: the client sends a message and waits for the server
+ * (an event loop echoing what it receives) to send it back.
+ *
+ * @author Alba Mendez
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LocalTransportBenchmark {
+
+    static final int PORT = 3620;
+
+    @Param({"tcp", "unix"})
+    String transport;
+
+    /** Size of the messages, a chat line or a chunk of a file transfer **/
+    @Param({"64", "16384"})
+    int size;
+
+    Path directory, path;
+    SocketChannel channel;
+    ByteBuffer message, reply;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("transport-benchmark");
+        path = directory.resolve("echo.sock");
+        CountDownLatch listening = new CountDownLatch(1);
+        Thread loop = new Thread(new EventLoop(() -> {
+            Server.NetServer server = Server.createServer((socket) -> {
+                socket.setNoDelay(true);
+                socket.on("data", (chunk) -> socket.write(ByteBuffer.wrap((byte[]) chunk)));
+                socket.on("error", () -> socket.destroy());
+                socket.on("end", () -> socket.destroy());
+            });
+            if (transport.equals("unix"))
+                server.listen(path, () -> listening.countDown());
+            else
+                server.listen(PORT, () -> listening.countDown());
+        }));
+        loop.setDaemon(true);
+        loop.start();
+        listening.await();
+
+        if (transport.equals("unix")) {
+            channel = UnixSockets.connect(path);
+        } else {
+            channel = SocketChannel.open(new InetSocketAddress("localhost", PORT));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        message = ByteBuffer.allocateDirect(size);
+        reply = ByteBuffer.allocateDirect(size);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        channel.close();
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public int roundTrip() throws Exception {
+        message.clear();
+        while (message.hasRemaining())
+            channel.write(message);
+        reply.clear();
+        while (reply.hasRemaining())
+            if (channel.read(reply) < 0)
+                throw new IllegalStateException("Connection closed");
+        return reply.get(0);
+    }
+
+}
@@ -0,0 +1,51 @@
+package p3;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import p3.Server.EventEmitter;
+import p3.Server.Readline;
+
+/**
+ * Cost of splitting incoming data into lines with {@link Readline}, for
+ * chunks holding many lines and for lines split across many chunks.
+ *
+ * @author Alba Mendez
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReadlineBenchmark {
+
+    @Param({"2048", "16"})
+    int chunkSize;
+
+    EventEmitter source;
+    byte[][] chunks;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            text.append("message number ").append(i).append(" with some text áé\n");
+        byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+
+        chunks = new byte[(data.length + chunkSize - 1) / chunkSize][];
+        for (int i = 0; i < chunks.length; i++) {
+            int start = i * chunkSize;
+            chunks[i] = java.util.Arrays.copyOfRange(data, start, Math.min(start + chunkSize, data.length));
+        }
+
+        source = new EventEmitter();
+        Readline rl = new Readline(source);
+        rl.on("line", (String line) -> blackhole.consume(line));
+    }
+
+    @Benchmark
+    public void dataHandler() {
+        for (byte[] chunk : chunks)
+            source.emit("data", chunk);
+    }
+
+}
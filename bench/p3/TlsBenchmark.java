@@ -0,0 +1,136 @@
+package p3;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import org.openjdk.jmh.annotations.*;
+import p3.Server.NetServer;
+
+/**
+ * Cost of TLS on the event loop: handshakes per second (full and resumed)
+ * and throughput of encrypted data, against a server with a self-signed
+ * certificate. The server runs in a single event loop thread, so the
+ * results are per server core (the client runs in the benchmark thread,
+ * and does as much crypto work).
+ *
+ * @author Alba Mendez
+ */
+public class TlsBenchmark {
+
+    static final int PLAIN_PORT = 3610, TLS_PORT = 3611;
+    static final char[] PASSWORD = "benchmark".toCharArray();
+
+    /**
+     * Server listening in both ports, that replies to every connection
+     * with a byte (so that TLS 1.3 clients get their session ticket before
+     * closing) and discards whatever it receives.
+     */
+    @State(Scope.Benchmark)
+    public static class ServerState {
+        TlsContext client;
+        Path directory;
+
+        @Setup
+        public void setup() throws Exception {
+            directory = Files.createTempDirectory("tls-benchmark");
+            Path keyStore = directory.resolve("server.p12");
+            Process keytool = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+                    "-genkeypair", "-alias", "server", "-keyalg", "EC", "-groupname", "secp256r1",
+                    "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "1",
+                    "-storetype", "PKCS12", "-keystore", keyStore.toString(), "-storepass", new String(PASSWORD))
+                    .inheritIO().start();
+            if (keytool.waitFor() != 0)
+                throw new IllegalStateException("keytool failed");
+            TlsContext server = TlsContext.forServer(keyStore, PASSWORD);
+            client = TlsContext.forClient(keyStore, PASSWORD);
+
+            CountDownLatch listening = new CountDownLatch(2);
+            Thread loop = new Thread(new EventLoop(() -> {
+                for (int port : new int[] { PLAIN_PORT, TLS_PORT }) {
+                    NetServer listener = Server.createServer((socket) -> {
+                        socket.on("error", () -> socket.destroy());
+                        socket.on("end", () -> socket.destroy());
+                        socket.write("\n");
+                    });
+                    if (port == TLS_PORT)
+                        listener.setTls(server);
+                    listener.listen(port, () -> listening.countDown());
+                }
+            }));
+            loop.setDaemon(true);
+            loop.start();
+            listening.await();
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            Files.deleteIfExists(directory.resolve("server.p12"));
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class HandshakeOptions {
+        /** Whether sessions are kept for resumption, or invalidated after each handshake **/
+        @Param({"true", "false"})
+        boolean resume;
+    }
+
+    /** Connect, handshake, wait for the server's byte and close **/
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int handshake(ServerState state, HandshakeOptions options) throws Exception {
+        SSLSocketFactory factory = state.client.getContext().getSocketFactory();
+        Socket raw = new Socket("localhost", TLS_PORT);
+        raw.setTcpNoDelay(true);
+        try (SSLSocket socket = (SSLSocket) factory.createSocket(raw, "localhost", TLS_PORT, true)) {
+            int b = socket.getInputStream().read();
+            if (!options.resume)
+                socket.getSession().invalidate();
+            return b;
+        }
+    }
+
+    /** A connection to the server, sending chunks of data **/
+    @State(Scope.Thread)
+    public static class Connection {
+        @Param({"tls", "plain"})
+        String transport;
+
+        Socket socket;
+        OutputStream output;
+        byte[] chunk = new byte[16384];
+
+        @Setup
+        public void setup(ServerState state) throws Exception {
+            socket = transport.equals("tls")
+                    ? state.client.getContext().getSocketFactory().createSocket("localhost", TLS_PORT)
+                    : new Socket("localhost", PLAIN_PORT);
+            InputStream input = socket.getInputStream();
+            input.read();
+            output = socket.getOutputStream();
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            socket.close();
+        }
+    }
+
+    /** Send 16KiB to the server, which reads (and decrypts) it in the loop **/
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void throughput(Connection connection) throws Exception {
+        connection.output.write(connection.chunk);
+    }
+
+}
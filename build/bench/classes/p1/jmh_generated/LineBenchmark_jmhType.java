@@ -0,0 +1,4 @@
+package p1.jmh_generated;
+public class LineBenchmark_jmhType extends LineBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package p1.jmh_generated;
+public class ParseInputBenchmark_jmhType extends ParseInputBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package p2.jmh_generated;
+public class MySocketBenchmark_jmhType extends MySocketBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package p3.jmh_generated;
+public class ClientRenderBenchmark_jmhType extends ClientRenderBenchmark_jmhType_B3 {
+}
+
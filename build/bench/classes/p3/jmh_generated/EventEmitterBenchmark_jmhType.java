@@ -0,0 +1,4 @@
+package p3.jmh_generated;
+public class EventEmitterBenchmark_jmhType extends EventEmitterBenchmark_jmhType_B3 {
+}
+
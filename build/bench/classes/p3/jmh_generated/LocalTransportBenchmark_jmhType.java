@@ -0,0 +1,4 @@
+package p3.jmh_generated;
+public class LocalTransportBenchmark_jmhType extends LocalTransportBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package p3.jmh_generated;
+public class ReadlineBenchmark_jmhType extends ReadlineBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package p3.jmh_generated;
+public class TlsBenchmark_Connection_jmhType extends TlsBenchmark_Connection_jmhType_B3 {
+}
+
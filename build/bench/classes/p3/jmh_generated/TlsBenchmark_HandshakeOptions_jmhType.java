@@ -0,0 +1,4 @@
+package p3.jmh_generated;
+public class TlsBenchmark_HandshakeOptions_jmhType extends TlsBenchmark_HandshakeOptions_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package p3.jmh_generated;
+public class TlsBenchmark_ServerState_jmhType extends TlsBenchmark_ServerState_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package p3.jmh_generated;
+public class TlsBenchmark_jmhType extends TlsBenchmark_jmhType_B3 {
+}
+
@@ -4,7 +4,7 @@ const { TelnetServerSocket, LINEMODE, ECHO } = require('./telnet')
 
 const args = process.argv.slice(2)
 if (args.length < 1 || args.length > 2) {
-  console.error('Usage: client.js <hostname> [<port>]')
+  console.error('Usage: telnet-bridge.js <hostname> [<port>] | unix:<path>')
   process.exit(1)
 }
 
@@ -26,7 +26,9 @@ net.createServer({ allowHalfOpen: true }, async connection => {
     terminal = true
   }
 
-  const socket = net.connect(args[1] || 3500, args[0])
+  const socket = args[0].startsWith('unix:')
+    ? net.connect({ path: args[0].slice('unix:'.length) })
+    : net.connect(args[1] || 3500, args[0])
   socket.on("error", err => console.error("Unhandled error on socket:", err.stack || err))
   socket.on('connect', () => {
     const rl = readline.createInterface({
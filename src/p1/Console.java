@@ -124,4 +124,13 @@ public class Console implements Observer {
         writeOutput("\u001b[?9l");
     }
 
+    public void enableBracketedPaste() {
+        // Pasted text will be surrounded by CSI 200 ~ and CSI 201 ~
+        writeOutput("\u001b[?2004h");
+    }
+
+    public void disableBracketedPaste() {
+        writeOutput("\u001b[?2004l");
+    }
+
 }
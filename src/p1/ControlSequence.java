@@ -0,0 +1,96 @@
+package p1;
+
+/**
+ * A parsed ECMA-48 control sequence (CSI). Numeric parameters are decoded
+ * while parsing, so handlers don't need to split or match strings.
+ *
+ * Instances are reused by the parser: handlers must not keep references
+ * to them after returning.
+ *
+ * @author Alba Mendez
+ */
+public class ControlSequence {
+
+    /** Maximum number of parameters kept; extra parameters are dropped **/
+    public static final int MAX_PARAMETERS = 16;
+
+    /** Private parameter marker (one of {@code <=>?}) or 0 if none **/
+    protected char prefix;
+    /** Parameter values, -1 when the parameter was omitted **/
+    protected final int[] parameters = new int[MAX_PARAMETERS];
+    protected int parameterCount;
+    /** First intermediate byte, or 0 if none **/
+    protected char intermediate;
+    /** Final byte **/
+    protected char function;
+
+    public char getPrefix() {
+        return prefix;
+    }
+
+    public int getParameterCount() {
+        return parameterCount;
+    }
+
+    /** Get the value of a parameter, or {@code def} if it was omitted **/
+    public int getParameter(int index, int def) {
+        if (index >= parameterCount || parameters[index] < 0)
+            return def;
+        return parameters[index];
+    }
+
+    public char getIntermediate() {
+        return intermediate;
+    }
+
+    public char getFunction() {
+        return function;
+    }
+
+    /** Reset to a sequence without parameters and the passed final byte **/
+    public void clear(char function) {
+        this.prefix = 0;
+        this.parameterCount = 0;
+        this.intermediate = 0;
+        this.function = function;
+    }
+
+    /** Parse the parameter bytes in {@code str[start:end]} **/
+    void parseParameters(CharSequence str, int start, int end) {
+        parameterCount = 0;
+        prefix = 0;
+        if (start == end) return;
+        int value = -1;
+        for (int i = start; i < end; i++) {
+            char c = str.charAt(i);
+            if (c >= '0' && c <= '9') {
+                // (clamp to avoid overflowing on garbage)
+                value = (value < 0) ? (c - '0') : Math.min(value * 10 + (c - '0'), 0xFFFFFF);
+            } else if (c == ';' || c == ':') {
+                addParameter(value);
+                value = -1;
+            } else if (i == start) {
+                prefix = c;
+            }
+        }
+        addParameter(value);
+    }
+
+    private void addParameter(int value) {
+        if (parameterCount < MAX_PARAMETERS)
+            parameters[parameterCount++] = value;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("CSI ");
+        if (prefix != 0) result.append(prefix);
+        for (int i = 0; i < parameterCount; i++) {
+            if (i > 0) result.append(';');
+            if (parameters[i] >= 0) result.append(parameters[i]);
+        }
+        if (intermediate != 0) result.append(intermediate);
+        return result.append(function).toString();
+    }
+
+}
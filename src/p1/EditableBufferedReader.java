@@ -2,16 +2,36 @@ package p1;
 
 import java.io.*;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class EditableBufferedReader extends BufferedReader {
 
     protected final Writer output;
+    protected final InputPump pump;
 
     public EditableBufferedReader(Reader input) {
         super(input);
         this.output = new OutputStreamWriter(System.out);
+        this.pump = new InputPump(input);
+    }
+
+    /**
+     * Reads go through the input pump, so that reads with timeout (see
+     * {@link #readWithTimeout}) and regular reads can be mixed freely.
+     */
+
+    @Override
+    public int read() throws IOException {
+        return pump.read();
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        return pump.read(cbuf, off, len);
+    }
+
+    @Override
+    public boolean ready() throws IOException {
+        return pump.ready();
     }
 
     protected boolean initialized = false;
@@ -20,6 +40,7 @@ public class EditableBufferedReader extends BufferedReader {
     protected boolean contentsSubmitted;
     protected boolean eofPressed;
     protected boolean submit;
+    protected StringBuilder paste;
     protected Line model;
     protected Console view;
 
@@ -39,6 +60,7 @@ public class EditableBufferedReader extends BufferedReader {
         interrupted = false;
         contentsSubmitted = false;
         eofPressed = false;
+        paste = null;
         this.submit = submit;
         model = new Line(width, height);
         view = new Console(output, model, startRow, startColumn);
@@ -70,6 +92,7 @@ public class EditableBufferedReader extends BufferedReader {
             initialized = false;
 
             view.enableMouse();
+            view.enableBracketedPaste();
             try {
 
                 view.draw();
@@ -86,10 +109,12 @@ public class EditableBufferedReader extends BufferedReader {
                 return eofPressed ? null : model.getContents();
 
             } finally {
+                view.disableBracketedPaste();
                 view.disableMouse();
             }
         } finally {
-            unsetRaw();
+            if (!persistentRaw)
+                unsetRaw();
         }
     }
 
@@ -106,22 +131,27 @@ public class EditableBufferedReader extends BufferedReader {
      * that, call repeatedly until buffer is empty. If EOF occurs while reading
      * this method throws EOFException immediately without calling the parsing
      * function [again].
+     *
+     * Regular reads fetch all of the available input at once, and the buffer
+     * is parsed in place, so large pastes are processed in linear time.
      */
-    protected String buffer = "";
+    protected final InputBuffer buffer = new InputBuffer(256);
+    protected final ControlSequence sequence = new ControlSequence();
+    private final char[] readChunk = new char[4096];
     protected boolean bufferEnd;
     protected Integer readTimeout = 70;
 
     protected void processInput() throws EOFException, IOException {
         // If the buffer is empty, perform regular read
         if (buffer.isEmpty()) {
-            int c = read();
-            if (c == -1) throw new EOFException();
-            buffer += String.valueOf((char)c);
+            int n = read(readChunk, 0, readChunk.length);
+            if (n == -1) throw new EOFException();
+            buffer.append(readChunk, 0, n);
             bufferEnd = false;
         }
         // Call parsing function until it succeeds
         int consumed;
-        while ((consumed = parseInput(buffer, !bufferEnd, consumer)) == -1) {
+        while ((consumed = parseInput(buffer, 0, !bufferEnd, consumer, sequence)) == -1) {
             if (bufferEnd)
                 throw new AssertionError("bufferEnd = true but input was NOT consumed");
             // Perform a read with timeout
@@ -130,12 +160,12 @@ public class EditableBufferedReader extends BufferedReader {
                 bufferEnd = true;
                 if (c == -1) throw new EOFException();
             } else {
-                buffer += String.valueOf((char) c);
+                buffer.append((char) c);
             }
         }
         // Consume bytes from buffer
         assert(consumed > 0);
-        buffer = buffer.substring(consumed);
+        buffer.consume(consumed);
     }
 
     /**
@@ -146,57 +176,65 @@ public class EditableBufferedReader extends BufferedReader {
      * @throws java.io.IOException
      */
     protected int readWithTimeout(int timeout) throws IOException {
-        // A little bit hacky, but it's what we have...
-        long current = System.currentTimeMillis();
-        do {
-            if (ready()) return read();
-        } while (timeout > 0 && System.currentTimeMillis() < current + timeout);
-        return -2;
+        return pump.read(timeout);
     }
 
 
     /**
      * Parsing function. Given a (non-empty) input buffer, parse an input
-     * sequence at the start of the buffer and call the appropriate function
-     * on the consumer to handle it.
+     * sequence at the passed position of the buffer and call the appropriate
+     * function on the consumer to handle it.
      *
      * The length of the consumed input sequence must be returned, which is
      * expected to be > 0. If {@code more == true} (more bytes are available)
      * the function can return -1 and it'll be called again with either more
      * bytes at the buffer, or {@code more} set to false.
      *
+     * The parser doesn't allocate: control sequences are decoded into the
+     * passed {@code seq} object, which is then handed to the consumer.
+     *
      * @param str Terminal input buffer.
+     * @param start Position where the sequence starts.
      * @param more Indicates if more bytes can be requested.
      * @param c Consumer for the parsed entity.
-     * @return Bytes consumed from the start of the buffer, or -1 if more bytes
+     * @param seq Object to decode control sequences into.
+     * @return Bytes consumed from the start position, or -1 if more bytes
      * are needed (only if {@code more == true}).
      */
-    public static int parseInput(final String str, final boolean more, ParsingConsumer c) {
+    public static int parseInput(final CharSequence str, final int start, final boolean more,
+            ParsingConsumer c, ControlSequence seq) {
+        final int length = str.length() - start;
+        final char first = str.charAt(start);
+
         // Begin by attempting to parse valid ECMA-48 control sequences in
         // a mostly compliant way.
 
         // -> try to parse C1 first
-        if (str.charAt(0) == 0x1B && (1 < str.length() || more)) {
-            if (1 >= str.length() && more) return -1;
+        if (first == 0x1B && (1 < length || more)) {
+            if (1 >= length && more) return -1;
+            final char second = str.charAt(start + 1);
 
-            if (str.charAt(1) == '[') { // CSI
+            if (second == '[') { // CSI
                 // parse parameter chars
                 int i = 2, paramStart = i;
-                while (i < str.length() && (str.charAt(i) & ~0xF) == 0x30) i++;
+                while (i < length && (str.charAt(start + i) & ~0xF) == 0x30) i++;
                 // parse intermediate chars
                 int intermediateStart = i;
-                while (i < str.length() && (str.charAt(i) & ~0xF) == 0x20) i++;
+                while (i < length && (str.charAt(start + i) & ~0xF) == 0x20) i++;
                 // parse final byte
-                if (i >= str.length() && more) return -1;
-                if (i < str.length() && str.charAt(i) >= 0x40 && str.charAt(i) <= 0x7E) {
-                    c.handleCSI(str.substring(paramStart, intermediateStart),
-                            str.substring(intermediateStart, i + 1));
+                if (i >= length && more) return -1;
+                char fin;
+                if (i < length && (fin = str.charAt(start + i)) >= 0x40 && fin <= 0x7E) {
+                    seq.parseParameters(str, start + paramStart, start + intermediateStart);
+                    seq.intermediate = (intermediateStart < i) ? str.charAt(start + intermediateStart) : 0;
+                    seq.function = fin;
+                    c.handleCSI(seq);
                     return i + 1;
                 }
-            } else if (str.charAt(1) == 'N' || str.charAt(1) == 'O') { // SS2 / SS3
-                if (2 >= str.length() && more) return -1;
-                if (2 < str.length()) {
-                    c.handleSS(str.charAt(1) == 'N' ? 2 : 3, str.charAt(2));
+            } else if (second == 'N' || second == 'O') { // SS2 / SS3
+                if (2 >= length && more) return -1;
+                if (2 < length) {
+                    c.handleSS(second == 'N' ? 2 : 3, str.charAt(start + 2));
                     return 3;
                 }
             } else if (false) { // command string
@@ -205,30 +243,30 @@ public class EditableBufferedReader extends BufferedReader {
 
             // at this point it could be another C1 (0x40-0x5F),
             // an independent function (0x70-0x4E), or a Meta modifier
-            c.handleTwoByte(str.charAt(1));
+            c.handleTwoByte(second);
             return 2;
 
         }
 
         // -> try to parse C0 and DEL (control characters)
-        if (str.charAt(0) < 0x20 || str.charAt(0) == 0x7F) {
-            c.handleOneByte(str.charAt(0));
+        if (first < 0x20 || first == 0x7F) {
+            c.handleOneByte(first);
             return 1;
         }
 
         // If there wasn't an ECMA-48 control sequence, check we have a valid,
         // full Unicode codepoint and process it.
 
-        if (Character.isSurrogate(str.charAt(0))) {
-            if (Character.isHighSurrogate(str.charAt(0))) {
-                if (1 >= str.length() && more) return -1;
-                if (1 < str.length() && Character.isLowSurrogate(str.charAt(1))) {
-                    c.handleCodepoint(str.codePointAt(0));
+        if (Character.isSurrogate(first)) {
+            if (Character.isHighSurrogate(first)) {
+                if (1 >= length && more) return -1;
+                if (1 < length && Character.isLowSurrogate(str.charAt(start + 1))) {
+                    c.handleCodepoint(Character.toCodePoint(first, str.charAt(start + 1)));
                     return 2;
                 }
             }
         } else { // non surrogate
-            c.handleCodepoint(str.codePointAt(0));
+            c.handleCodepoint(first);
             return 1;
         }
 
@@ -236,12 +274,20 @@ public class EditableBufferedReader extends BufferedReader {
         return 1;
     }
 
+    /**
+     * Convenience version of {@link #parseInput(CharSequence, int, boolean,
+     * ParsingConsumer, ControlSequence)} that parses at the start of the buffer.
+     */
+    public static int parseInput(final CharSequence str, final boolean more, ParsingConsumer c) {
+        return parseInput(str, 0, more, c, new ControlSequence());
+    }
+
     /**
      * This interface defines callbacks that must be implemented
      * by the consumer to handle parsed entities.
      */
     public static interface ParsingConsumer {
-        void handleCSI(String parameters, String function);
+        void handleCSI(ControlSequence seq);
         void handleSS(int set, char c);
         void handleTwoByte(char c);
         void handleOneByte(char c);
@@ -249,8 +295,8 @@ public class EditableBufferedReader extends BufferedReader {
     }
 
     private final ParsingConsumer consumer = new ParsingConsumer() {
-        public void handleCSI(String parameters, String function) {
-            EditableBufferedReader.this.handleCSI(parameters, function);
+        public void handleCSI(ControlSequence seq) {
+            EditableBufferedReader.this.handleCSI(seq);
         }
         public void handleSS(int set, char c) {
             EditableBufferedReader.this.handleSS(set, c);
@@ -271,43 +317,89 @@ public class EditableBufferedReader extends BufferedReader {
      * User interface. Handles input sequences and updates model or view.
      */
 
-    private final static Pattern MOUSE_CSI_PATTERN =
-            Pattern.compile("^<?(\\d+);(\\d+);(\\d+)");
-
-    protected void handleCSI(String parameters, String function) {
-        if (function.equals("D") || function.equals("C")) { // left / right
-            model.advanceCaret(function.equals("D") ? -1 : +1);
-        } else if (function.equals("A") || function.equals("B")) { // up / down
-            model.moveCaret(model.getRow() + (function.equals("A") ? -1 : +1), model.getColumn());
-        } else if (function.equals("H") || function.equals("F")) { // home / end
-            int column = function.equals("H") ? 0 : model.getLines().get(model.getRow()).size();
-            model.moveCaret(model.getRow(), column);
-        } else if (function.equals("~") && parameters.split(";")[0].equals("3")) { // delete
-            model.delete();
-        } else if (function.equals("~") && parameters.equals("2")) { // insert
-            model.setInsertMode(!model.getInsertMode());
-        } else if (function.equals("M")) { // mouse
+    /**
+     * Handler for a control sequence. Control sequences are dispatched
+     * through a table indexed by their final byte (see {@link #bindFunction})
+     * except for {@code CSI <key> ~} sequences, which are dispatched through a
+     * table indexed by the key number (see {@link #bindKey}). Subclasses may
+     * add or replace bindings to implement custom keys.
+     */
+    public static interface SequenceHandler {
+        void handle(ControlSequence seq);
+    }
+
+    private final SequenceHandler[] functionBindings = new SequenceHandler[0x7F - 0x40];
+    private final SequenceHandler[] keyBindings = new SequenceHandler[256];
+
+    /** Bind a handler to sequences with the passed final byte (0x40-0x7E) **/
+    protected void bindFunction(char function, SequenceHandler handler) {
+        if (function < 0x40 || function > 0x7E)
+            throw new IllegalArgumentException("Invalid final byte: " + (int) function);
+        if (function == '~')
+            throw new IllegalArgumentException("Use bindKey() to bind '~' sequences");
+        functionBindings[function - 0x40] = handler;
+    }
+
+    /** Bind a handler to {@code CSI <key> ~} sequences **/
+    protected void bindKey(int key, SequenceHandler handler) {
+        if (key < 0 || key >= keyBindings.length)
+            throw new IllegalArgumentException("Invalid key number: " + key);
+        keyBindings[key] = handler;
+    }
+
+    {
+        bindFunction('D', (seq) -> model.advanceCaret(-1)); // left
+        bindFunction('C', (seq) -> model.advanceCaret(+1)); // right
+        bindFunction('A', (seq) -> model.moveCaret(model.getRow() - 1, model.getColumn())); // up
+        bindFunction('B', (seq) -> model.moveCaret(model.getRow() + 1, model.getColumn())); // down
+        bindFunction('H', (seq) -> model.moveCaret(model.getRow(), 0)); // home
+        bindFunction('F', (seq) -> model.moveCaret(model.getRow(), model.getLines().get(model.getRow()).size())); // end
+        bindKey(3, (seq) -> model.delete()); // delete
+        bindKey(2, (seq) -> { // insert
+            if (seq.getParameterCount() == 1)
+                model.setInsertMode(!model.getInsertMode());
+        });
+        bindKey(200, (seq) -> handlePaste(true)); // bracketed paste
+        bindKey(201, (seq) -> handlePaste(false));
+        bindFunction('M', (seq) -> { // mouse
             // FIXME: for backwards compatibility, parse X10-style CSIs
             // which include 3 bytes *after* the CSI..
-            Matcher m = MOUSE_CSI_PATTERN.matcher(parameters);
-            if (m.matches()) {
-                int type = Integer.parseInt(m.group(1), 10),
-                        col = Integer.parseInt(m.group(2), 10),
-                        row = Integer.parseInt(m.group(3), 10);
+            if (seq.getParameterCount() == 3 && (seq.getPrefix() == 0 || seq.getPrefix() == '<')) {
+                int type = seq.getParameter(0, 0),
+                        col = seq.getParameter(1, 0),
+                        row = seq.getParameter(2, 0);
                 if ((type == 32 || type == 0) && col >= 1 && row >= 1) // FIXME
                     handleMousePress(row, col);
             }
+        });
+    }
+
+    protected void handleCSI(ControlSequence seq) {
+        SequenceHandler handler;
+        if (seq.getFunction() == '~') {
+            int key = seq.getParameter(0, -1);
+            if (paste != null && key != 201)
+                handlePaste(false); // the end of the paste was lost
+            handler = (key >= 0 && key < keyBindings.length) ? keyBindings[key] : null;
+        } else {
+            if (paste != null)
+                handlePaste(false);
+            handler = functionBindings[seq.getFunction() - 0x40];
         }
+        if (handler != null)
+            handler.handle(seq);
     }
 
     protected void handleSS(int set, char c) {
         // Old terminals send special keys as SS3 controls instead of CSIs
         if (set == 3 && "ABCDHF".indexOf(c) != -1) {
-            handleCSI("", String.valueOf(c));
+            sequence.clear(c);
+            handleCSI(sequence);
         }
     }
 
     protected void handleTwoByte(char c) {
+        if (paste != null) return;
         if (c == '\r') {
             if (submit)
                 model.enterLine();
@@ -317,6 +409,18 @@ public class EditableBufferedReader extends BufferedReader {
     }
 
     protected void handleOneByte(char c) {
+        if (paste != null && (c == 0x03 || c == 0x04)) {
+            // Control+C and Control+D still work, dropping the paste
+            paste = null;
+        } else if (paste != null) {
+            // Keep linebreaks only, as "\r\n" or "\r" or "\n"
+            int last = paste.length() - 1;
+            if (c == '\n' && last >= 0 && paste.charAt(last) == '\r')
+                paste.setCharAt(last, '\n');
+            else if (c == '\r' || c == '\n')
+                paste.append(c);
+            return;
+        }
         if (c == '\r') { // Enter
             if (submit)
                 contentsSubmitted = true;
@@ -335,10 +439,38 @@ public class EditableBufferedReader extends BufferedReader {
     }
 
     protected void handleCodepoint(int code) {
+        if (paste != null) {
+            paste.appendCodePoint(code);
+            if (paste.length() >= PASTE_CHUNK) {
+                handlePaste(false);
+                handlePaste(true);
+            }
+            return;
+        }
         // (For now, assume each codepoint is a glyph)
         model.enterGlyph(String.copyValueOf(Character.toChars(code)));
     }
 
+    /** Pasted text is inserted in pieces of up to this many chars **/
+    protected static final int PASTE_CHUNK = 1 << 16;
+
+    /**
+     * Pasted text is collected and inserted at once when the paste ends,
+     * so that it's rendered once instead of once per glyph. Large pastes
+     * are inserted in pieces of {@link #PASTE_CHUNK} chars, and any
+     * sequence other than the end of the paste ends it too, in case the
+     * terminal never sends it.
+     */
+    protected void handlePaste(boolean start) {
+        if (start) {
+            if (paste == null)
+                paste = new StringBuilder();
+        } else if (paste != null) {
+            model.insertText(paste.toString().replace('\r', '\n'));
+            paste = null;
+        }
+    }
+
     protected void handleMousePress(int row, int column) {
         model.moveCaret(row - view.getStartRow(), column - view.getStartColumn());
     }
@@ -359,21 +491,19 @@ public class EditableBufferedReader extends BufferedReader {
     private Map<String, Object> queries = new HashMap<>();
     private Integer queryTimeout = 300;
 
-    private final static Pattern CPR_PATTERN =
-            Pattern.compile("^(\\d+);(\\d+)$");
-    private final static Pattern XTERM_SIZE_PATTERN =
-            Pattern.compile("^8;(\\d+);(\\d+)$");
+    private final ControlSequence querySequence = new ControlSequence();
 
     private final ParsingConsumer queryConsumer = new ParsingConsumer() {
-        public void handleCSI(String parameters, String function) {
-            Matcher m;
-            if (function.equals("R") && (m = CPR_PATTERN.matcher(parameters)).matches()) {
-                int row = Integer.parseInt(m.group(1));
-                int column = Integer.parseInt(m.group(2));
+        public void handleCSI(ControlSequence seq) {
+            if (seq.getPrefix() != 0 || seq.getIntermediate() != 0) return;
+            int n = seq.getParameterCount();
+            if (seq.getFunction() == 'R' && n == 2) {
+                int row = seq.getParameter(0, 1);
+                int column = seq.getParameter(1, 1);
                 queries.put("cursor", new Coordinates(column, row));
-            } else if (function.equals("t") && (m = XTERM_SIZE_PATTERN.matcher(parameters)).matches()) {
-                int rows = Integer.parseInt(m.group(1));
-                int columns = Integer.parseInt(m.group(2));
+            } else if (seq.getFunction() == 't' && n == 3 && seq.getParameter(0, 0) == 8) {
+                int rows = seq.getParameter(1, 0);
+                int columns = seq.getParameter(2, 0);
                 queries.put("windowSize", new Coordinates(columns, rows));
             }
         }
@@ -402,13 +532,13 @@ public class EditableBufferedReader extends BufferedReader {
             int c = (queryTimeout != null) ? readWithTimeout(queryTimeout) : read();
             if (c < 0)
                 throw new IOException("Didn't receive a reply from the terminal");
-            buffer += String.valueOf((char)c);
+            buffer.append((char) c);
 
             while (bufferOffset < buffer.length()) {
-                int consumed = parseInput(buffer.substring(bufferOffset), true, queryConsumer);
+                int consumed = parseInput(buffer, bufferOffset, true, queryConsumer, querySequence);
                 if (consumed == -1) break;
                 if (queries.containsKey(key)) {
-                    buffer = buffer.substring(0, bufferOffset);
+                    buffer.delete(bufferOffset, bufferOffset + consumed);
                     return queries.get(key);
                 }
                 bufferOffset += consumed;
@@ -418,23 +548,44 @@ public class EditableBufferedReader extends BufferedReader {
 
 
     /**
-     * Terminal mode change logic.
+     * Terminal mode change logic. The terminal state is saved the first time
+     * raw mode is entered, and restored from it (instead of guessing with
+     * "echo -raw") when leaving raw mode or when the JVM shuts down.
+     *
+     * Mode changes are tracked, so {@link #setRaw()} and {@link #unsetRaw()}
+     * only spawn stty when the mode actually changes. Readers in persistent
+     * raw mode (see {@link #setPersistentRaw(boolean)}) don't leave raw mode
+     * after each line, so the whole session costs a couple of stty calls.
      */
 
-    protected static void executeStty(String... args) {
+    private static String savedMode;
+    private static boolean raw;
+
+    protected boolean persistentRaw = false;
+
+    protected static String executeStty(String... args) {
         try {
             List<String> command = new ArrayList<>(Arrays.asList(args));
             command.add(0, "stty");
             final Process pr = new ProcessBuilder(command)
                     .redirectInput(ProcessBuilder.Redirect.INHERIT)
-                    .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .redirectOutput(ProcessBuilder.Redirect.PIPE)
                     .redirectError(ProcessBuilder.Redirect.INHERIT)
                     .start();
 
+            StringBuilder result = new StringBuilder();
+            try (Reader out = new InputStreamReader(pr.getInputStream())) {
+                char[] buf = new char[256];
+                int n;
+                while ((n = out.read(buf)) != -1)
+                    result.append(buf, 0, n);
+            }
+
             final int status = pr.waitFor();
             if (status != 0) {
                 throw new RuntimeException("stty failed with exit code " + status);
             }
+            return result.toString().trim();
         } catch (IOException ex) {
             throw new RuntimeException("Failed executing stty", ex);
         } catch (InterruptedException ex) {
@@ -442,12 +593,47 @@ public class EditableBufferedReader extends BufferedReader {
         }
     }
 
-    public static void setRaw() {
+    public static synchronized void setRaw() {
+        if (raw) return;
+        if (savedMode == null) {
+            savedMode = executeStty("-g");
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                public void run() {
+                    unsetRaw();
+                }
+            }));
+        }
         executeStty("-echo", "raw");
+        raw = true;
+    }
+
+    public static synchronized void unsetRaw() {
+        if (!raw) return;
+        executeStty(savedMode);
+        raw = false;
+    }
+
+    public static synchronized boolean isRaw() {
+        return raw;
     }
 
-    public static void unsetRaw() {
-        executeStty("echo", "-raw");
+    /**
+     * When enabled, {@link #readLine()} leaves the terminal in raw mode after
+     * returning, so that subsequent calls don't need to change modes again.
+     * The terminal is restored when the reader is closed, or at exit.
+     */
+    public void setPersistentRaw(boolean persistentRaw) {
+        this.persistentRaw = persistentRaw;
+    }
+
+    public boolean getPersistentRaw() {
+        return persistentRaw;
+    }
+
+    @Override
+    public void close() throws IOException {
+        unsetRaw();
+        super.close();
     }
 
 }
@@ -0,0 +1,110 @@
+package p1;
+
+/**
+ * Growable ring buffer of chars, used to hold terminal input until it's
+ * parsed. Chars are appended at the end and consumed from the start in
+ * constant time, so input can be parsed in place without copying it
+ * around.
+ *
+ * @author Alba Mendez
+ */
+public class InputBuffer implements CharSequence {
+
+    private char[] data;
+    private int mask;
+    private int head;
+    private int size;
+
+    /** Construct an empty buffer, with (at least) the passed initial capacity **/
+    public InputBuffer(int capacity) {
+        int n = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+        data = new char[n];
+        mask = n - 1;
+    }
+
+    @Override
+    public int length() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index " + index + ", length " + size);
+        return data[(head + index) & mask];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= data.length) return;
+        int n = data.length;
+        while (n < capacity) n <<= 1;
+        char[] grown = new char[n];
+        copyTo(0, grown, 0, size);
+        data = grown;
+        mask = n - 1;
+        head = 0;
+    }
+
+    /** Copy {@code len} chars starting at {@code index} into an array **/
+    public void copyTo(int index, char[] dst, int off, int len) {
+        int from = (head + index) & mask;
+        int first = Math.min(len, data.length - from);
+        System.arraycopy(data, from, dst, off, first);
+        System.arraycopy(data, 0, dst, off + first, len - first);
+    }
+
+    public void append(char c) {
+        ensureCapacity(size + 1);
+        data[(head + size) & mask] = c;
+        size++;
+    }
+
+    public void append(char[] buf, int off, int len) {
+        ensureCapacity(size + len);
+        int to = (head + size) & mask;
+        int first = Math.min(len, data.length - to);
+        System.arraycopy(buf, off, data, to, first);
+        System.arraycopy(buf, off + first, data, 0, len - first);
+        size += len;
+    }
+
+    /** Remove the first {@code n} chars from the buffer **/
+    public void consume(int n) {
+        if (n < 0 || n > size)
+            throw new IndexOutOfBoundsException("consuming " + n + ", length " + size);
+        head = (head + n) & mask;
+        size -= n;
+    }
+
+    /** Remove chars from the middle of the buffer, shifting the rest **/
+    public void delete(int start, int end) {
+        if (start < 0 || end > size || start > end)
+            throw new IndexOutOfBoundsException("deleting " + start + "-" + end + ", length " + size);
+        for (int i = end; i < size; i++)
+            data[(head + start + i - end) & mask] = data[(head + i) & mask];
+        size -= end - start;
+    }
+
+    public void clear() {
+        head = size = 0;
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > size || start > end)
+            throw new IndexOutOfBoundsException("range " + start + "-" + end + ", length " + size);
+        char[] result = new char[end - start];
+        copyTo(start, result, 0, result.length);
+        return new String(result);
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, size).toString();
+    }
+
+}
@@ -0,0 +1,146 @@
+package p1;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class reads from a {@link Reader} on a dedicated (daemon) thread, and
+ * hands the read chunks over through a queue. This allows the consumer to
+ * perform real blocking reads with a timeout, which plain readers don't
+ * support, without polling {@link Reader#ready()}.
+ *
+ * The thread is started on the first read. Only one thread should consume
+ * from the pump at a time.
+ *
+ * @author Alba Mendez
+ */
+public class InputPump {
+
+    /** Marks the end of the stream (or an error, if {@link #error} is set) **/
+    private static final char[] END = new char[0];
+
+    private final Reader source;
+    private final LinkedBlockingQueue<char[]> chunks = new LinkedBlockingQueue<>();
+    private volatile IOException error;
+    private Thread thread;
+
+    /** Chunk being consumed, and position in it **/
+    private char[] current;
+    private int position;
+
+    public InputPump(Reader source) {
+        this.source = source;
+    }
+
+    private synchronized void start() {
+        if (thread != null) return;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                pump();
+            }
+        }, "InputPump");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void pump() {
+        char[] buf = new char[4096];
+        try {
+            int n;
+            while ((n = source.read(buf)) != -1) {
+                if (n > 0) chunks.add(Arrays.copyOf(buf, n));
+            }
+        } catch (IOException ex) {
+            error = ex;
+        }
+        chunks.add(END);
+    }
+
+    /**
+     * Make sure there's a chunk with available chars in {@link #current},
+     * waiting at most the passed time.
+     *
+     * @param timeout Maximum time to wait, in milliseconds, or a negative
+     * number to wait indefinitely.
+     * @return {@code true} if chars are available, {@code false} on timeout.
+     */
+    private boolean fetch(long timeout) throws IOException {
+        if (current != null && position < current.length)
+            return true;
+        start();
+        try {
+            char[] next = (timeout < 0) ? chunks.take()
+                    : chunks.poll(timeout, TimeUnit.MILLISECONDS);
+            if (next == null)
+                return false;
+            current = next;
+            position = 0;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        return true;
+    }
+
+    private boolean atEnd() throws IOException {
+        if (current != END) return false;
+        // Keep reporting the end on subsequent calls
+        chunks.add(END);
+        current = null;
+        if (error != null) throw error;
+        return true;
+    }
+
+    /**
+     * Read the next character, blocking until one is available.
+     *
+     * @return The character, or -1 if the end of stream was reached.
+     */
+    public int read() throws IOException {
+        fetch(-1);
+        if (atEnd()) return -1;
+        return current[position++];
+    }
+
+    /**
+     * Read the next character, with timeout.
+     *
+     * @param timeout Maximum time to wait for next character, in milliseconds.
+     * @return The character, -1 if the end of stream was reached, or -2 if
+     * the timeout expired.
+     */
+    public int read(long timeout) throws IOException {
+        if (!fetch(Math.max(timeout, 0))) return -2;
+        if (atEnd()) return -1;
+        return current[position++];
+    }
+
+    /**
+     * Read available characters into a buffer, blocking until at least one
+     * is available.
+     *
+     * @return The number of characters read, or -1 if the end of stream
+     * was reached.
+     */
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        fetch(-1);
+        if (atEnd()) return -1;
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, cbuf, off, n);
+        position += n;
+        return n;
+    }
+
+    /**
+     * @return Whether a read would return without blocking.
+     */
+    public boolean ready() {
+        return (current != null && position < current.length) || !chunks.isEmpty();
+    }
+
+}
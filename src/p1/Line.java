@@ -15,6 +15,7 @@ import java.util.Observable;
  *  - Advance or recede the cursor, if possible.
  *  - Introduce a glyph at the caret position (if possible).
  *  - Introduce a linebreak (if possible).
+ *  - Introduce a whole text (glyphs and linebreaks) at once.
  *  - Remove the linebreak/glyph before the caret (if possible).
  *  - Delete the linebreak/glyph after the caret (if possible).
  *  - Switch between 'insert' or 'replace' mode for subsequent glyphs.
@@ -125,6 +126,58 @@ public class Line extends Observable {
         return true;
     }
 
+    /**
+     * Introduce a text at the caret position, as a single change. The result
+     * is the same as entering each glyph and linebreak of the text in order
+     * (glyphs or linebreaks that don't fit are dropped) but each line is
+     * only modified once.
+     *
+     * Each codepoint is taken as a glyph; '\n' introduces a linebreak.
+     *
+     * @return The number of glyphs and linebreaks that were introduced.
+     */
+    public int insertText(CharSequence text) {
+        int entered = 0;
+        List<String> glyphs = new ArrayList<>();
+        for (int i = 0; i <= text.length(); ) {
+            int code = (i < text.length()) ? Character.codePointAt(text, i) : '\n';
+            if (code != '\n') {
+                glyphs.add(new String(Character.toChars(code)));
+                i += Character.charCount(code);
+                continue;
+            }
+            entered += insertGlyphs(glyphs);
+            glyphs.clear();
+            if (i < text.length() && lines.size() < height) {
+                List<String> line = lines.get(row);
+                lines.add(row + 1, new ArrayList<>(line.subList(column, line.size())));
+                line.subList(column, line.size()).clear();
+                row++;
+                column = 0;
+                entered++;
+            }
+            i++;
+        }
+        if (entered > 0)
+            setChanged();
+        return entered;
+    }
+
+    /** Introduce glyphs at the caret position, in the current line **/
+    private int insertGlyphs(List<String> glyphs) {
+        List<String> line = lines.get(row);
+        int replaced = 0;
+        if (!insertMode) {
+            replaced = Math.min(glyphs.size(), line.size() - column);
+            for (int i = 0; i < replaced; i++)
+                line.set(column + i, glyphs.get(i));
+        }
+        int inserted = Math.min(glyphs.size() - replaced, width - line.size());
+        line.addAll(column + replaced, glyphs.subList(replaced, replaced + inserted));
+        column += replaced + inserted;
+        return replaced + inserted;
+    }
+
     /** Move caret to the specified position, or the closest valid one **/
     public boolean moveCaret(int row, int column) {
         // First ensure row and column are in bounds
@@ -0,0 +1,487 @@
+package p2;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Append-only, durable log of the chat messages.
+ *
+ * <p>The log is split into segments of a fixed size. Each segment has a
+ * data file with the messages, exactly as sent to framed clients (see
+ * {@link Protocol}), and an index file with the timestamp and end position
+ * of each message. The files of the last segment, where messages are
+ * appended, are memory-mapped, so appending a message is just two memory
+ * copies: there's no system call and no fsync per message. Instead, a
+ * background thread forces them to disk every commit interval (group
+ * commit), so a crash loses at most that interval. When a segment is full
+ * it's forced to disk and unmapped, and a new one is started.
+ *
+ * <p>Messages in a time range are found by binary search on the index,
+ * and since the data file holds wire-format lines, they can be sent to a
+ * client (or any channel) with {@link FileChannel#transferTo}, without
+ * going through the Java heap. Files are read through read-only channels,
+ * of which only a few are kept open, so the log can grow to any number of
+ * segments without running out of file descriptors or address space.
+ *
+ * <p>When opened, the log continues the last segment. Its index is only
+ * partly on disk after a crash (pages are written back in any order), so
+ * it's scanned up to the first entry that isn't valid, and the rest is
+ * cleared. Full segments were forced before the next one was created, so
+ * their length is found by binary search (entries are zero past the end).
+ *
+ * @author Alba Mendez
+ */
+public class ChatLog implements Closeable {
+
+    /** Default size of the data file of each segment **/
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    private static final int INDEX_ENTRY = 16;
+    /** Read-only channels kept open while no region uses them **/
+    private static final int MAX_OPEN_CHANNELS = 16;
+
+    /**
+     * A range of a data file, see {@link #regions}. The channel is shared,
+     * and must not be closed: call {@link #release} once the region has
+     * been read (or won't be), so the log can close it when it's not needed.
+     */
+    public static class Region {
+        public final FileChannel channel;
+        public final long position;
+        public final long count;
+        private final ChatLog log;
+        private final Lease lease;
+        private boolean released;
+
+        Region(ChatLog log, Lease lease, long position, long count) {
+            this.log = log;
+            this.lease = lease;
+            this.channel = lease.channel;
+            this.position = position;
+            this.count = count;
+        }
+
+        /** Stop using the channel. Further calls do nothing. **/
+        public void release() {
+            synchronized (log) {
+                if (released) return;
+                released = true;
+                log.release(lease);
+            }
+        }
+    }
+
+    /** An open read-only channel, closed once evicted and not in use **/
+    private static class Lease {
+        final FileChannel channel;
+        int users;
+        boolean evicted;
+
+        Lease(FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private class Segment {
+        final long number;
+        int entries;
+        int size;
+        long firstTimestamp, lastTimestamp;
+        /** Mapped files, only while the segment is the one being appended to **/
+        volatile MappedByteBuffer dataMap, indexMap;
+        volatile boolean dirty;
+
+        Segment(long number) {
+            this.number = number;
+        }
+
+        /** Map the files of the segment, to append to it **/
+        void map(boolean create) throws IOException {
+            StandardOpenOption[] options = create
+                    ? new StandardOpenOption[] { StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE }
+                    : new StandardOpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE };
+            // (mappings stay valid after closing the channels)
+            try (FileChannel data = FileChannel.open(dataPath(number), options);
+                    FileChannel index = FileChannel.open(indexPath(number), options)) {
+                dataMap = data.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+                indexMap = index.map(FileChannel.MapMode.READ_WRITE, 0, (long) indexCapacity * INDEX_ENTRY);
+            }
+        }
+
+        /** Drop the mappings, once the segment is full and forced **/
+        void unmap() {
+            dataMap = indexMap = null;
+        }
+
+        /** Recover the number of entries of a full segment (timestamps are never zero) **/
+        void recover(FileChannel index) throws IOException {
+            int lo = 0, hi = indexCapacity;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (timestampAt(index, mid) != 0) lo = mid + 1; else hi = mid;
+            }
+            entries = lo;
+            size = (entries > 0) ? (int) endAt(index, entries - 1) : 0;
+            if (entries > 0) {
+                firstTimestamp = timestampAt(index, 0);
+                lastTimestamp = timestampAt(index, entries - 1);
+            }
+        }
+
+        /**
+         * Recover the entries of the mapped segment, up to the first one
+         * that isn't valid: timestamps must not decrease, and each entry
+         * must end after the previous one, at the end of a line.
+         */
+        void scan() {
+            long timestamp = 0;
+            for (entries = 0; entries < indexCapacity; entries++) {
+                long next = indexMap.getLong(entries * INDEX_ENTRY);
+                long end = indexMap.getLong(entries * INDEX_ENTRY + 8);
+                if (next == 0 || next < timestamp || end <= size || end > segmentSize
+                        || dataMap.get((int) end - 1) != '\n')
+                    break;
+                if (entries == 0) firstTimestamp = next;
+                timestamp = next;
+                size = (int) end;
+            }
+            lastTimestamp = timestamp;
+            // Clear the entries that didn't make it, so they can't pass as valid later
+            for (int i = entries * INDEX_ENTRY; i < indexCapacity * INDEX_ENTRY; i += 8) {
+                if (indexMap.getLong(i) != 0) {
+                    indexMap.putLong(i, 0);
+                    dirty = true;
+                }
+            }
+        }
+
+        /** Read from the mapped index, or from the passed channel if not mapped **/
+        long indexLong(FileChannel index, long position) throws IOException {
+            MappedByteBuffer map = indexMap;
+            if (map != null)
+                return map.getLong((int) position);
+            ByteBuffer buf = ByteBuffer.allocate(8);
+            while (buf.hasRemaining())
+                if (index.read(buf, position + buf.position()) < 0)
+                    return 0;
+            return buf.getLong(0);
+        }
+
+        long timestampAt(FileChannel index, int i) throws IOException {
+            return indexLong(index, (long) i * INDEX_ENTRY);
+        }
+
+        long endAt(FileChannel index, int i) throws IOException {
+            return indexLong(index, (long) i * INDEX_ENTRY + 8);
+        }
+
+        long startAt(FileChannel index, int i) throws IOException {
+            return (i == 0) ? 0 : endAt(index, i - 1);
+        }
+
+        boolean fits(int length) {
+            return entries < indexCapacity && size + length <= segmentSize;
+        }
+
+        void append(long timestamp, byte[] line) {
+            ByteBuffer data = dataMap.duplicate();
+            data.position(size);
+            data.put(line);
+            size += line.length;
+            // (a crash can leave these on disk without the data, see scan)
+            indexMap.putLong(entries * INDEX_ENTRY + 8, size);
+            indexMap.putLong(entries * INDEX_ENTRY, timestamp);
+            if (entries == 0) firstTimestamp = timestamp;
+            lastTimestamp = timestamp;
+            entries++;
+            dirty = true;
+        }
+
+        /** Index of the first entry with timestamp >= the passed one **/
+        int search(FileChannel index, long timestamp) throws IOException {
+            int lo = 0, hi = entries;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (timestampAt(index, mid) < timestamp) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+
+        void commit() {
+            MappedByteBuffer data = dataMap, index = indexMap;
+            if (!dirty || data == null) return;
+            dirty = false;
+            data.force();
+            index.force();
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int indexCapacity;
+    private final List<Segment> segments = new ArrayList<>();
+    private volatile Segment current;
+    /** Open read-only channels by path, least recently used first **/
+    private final LinkedHashMap<Path, Lease> channels = new LinkedHashMap<>(16, 0.75f, true);
+    private Thread committer;
+    private long lastTimestamp;
+
+    public ChatLog(Path directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open (or create) the log at the passed directory.
+     *
+     * @param segmentSize Size of the data file of each segment. Messages
+     *                    bigger than this can't be logged.
+     */
+    public ChatLog(Path directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        // Enough entries for messages of 16 bytes on average
+        this.indexCapacity = Math.max(segmentSize / 16, 1);
+        try {
+            Files.createDirectories(directory);
+            List<Long> numbers = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.log")) {
+                for (Path path : stream) {
+                    String name = path.getFileName().toString();
+                    numbers.add(Long.parseLong(name.substring(0, name.length() - 4)));
+                }
+            }
+            numbers.sort(null);
+            for (int i = 0; i < numbers.size(); i++) {
+                Segment segment = new Segment(numbers.get(i));
+                if (i == numbers.size() - 1) {
+                    segment.map(false);
+                    segment.scan();
+                    segment.commit();
+                } else {
+                    Lease index = acquire(indexPath(segment.number));
+                    try {
+                        segment.recover(index.channel);
+                    } finally {
+                        release(index);
+                    }
+                }
+                segments.add(segment);
+            }
+            if (segments.isEmpty()) {
+                Segment segment = new Segment(0);
+                segment.map(true);
+                segments.add(segment);
+            }
+            current = segments.get(segments.size() - 1);
+            lastTimestamp = current.lastTimestamp;
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldn't open chat log", ex);
+        }
+    }
+
+    /**
+     * Start a thread that forces the log to disk with the passed interval.
+     * Without it, data is only guaranteed to be on disk after {@link #close}
+     * (though the OS writes it out eventually).
+     */
+    public synchronized void setCommitInterval(final long millis) {
+        if (committer != null) committer.interrupt();
+        committer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(millis);
+                        commit();
+                    }
+                } catch (InterruptedException ex) {
+                }
+            }
+        });
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /** Force the new messages to disk (full segments already are) **/
+    public void commit() {
+        current.commit();
+    }
+
+    private Path dataPath(long number) {
+        return directory.resolve(String.format("%020d.log", number));
+    }
+
+    private Path indexPath(long number) {
+        return directory.resolve(String.format("%020d.idx", number));
+    }
+
+    /** Get a read-only channel for the file, opening it if needed **/
+    private synchronized Lease acquire(Path path) throws IOException {
+        Lease lease = channels.get(path);
+        if (lease == null) {
+            lease = new Lease(FileChannel.open(path, StandardOpenOption.READ));
+            channels.put(path, lease);
+            if (channels.size() > MAX_OPEN_CHANNELS) {
+                Iterator<Lease> eldest = channels.values().iterator();
+                Lease evicted = eldest.next();
+                eldest.remove();
+                evicted.evicted = true;
+                if (evicted.users == 0)
+                    closeChannel(evicted);
+            }
+        }
+        lease.users++;
+        return lease;
+    }
+
+    private synchronized void release(Lease lease) {
+        if (--lease.users == 0 && lease.evicted)
+            closeChannel(lease);
+    }
+
+    private static void closeChannel(Lease lease) {
+        try {
+            lease.channel.close();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Append a message. Timestamps are kept monotonic: a timestamp lower
+     * than the last one is replaced by it.
+     *
+     * @param timestamp Time of the message, in milliseconds since the epoch.
+     * @param line Encoded line, in the framed protocol (ending in a newline).
+     */
+    public synchronized void append(long timestamp, byte[] line) {
+        if (line.length > segmentSize)
+            throw new IllegalArgumentException("Message bigger than segment size");
+        lastTimestamp = Math.max(lastTimestamp, Math.max(timestamp, 1));
+        if (!current.fits(line.length)) {
+            // Force the full segment before starting the next one, so
+            // only the last segment can be incomplete after a crash
+            current.commit();
+            Segment next = new Segment(current.number + 1);
+            try {
+                next.map(true);
+            } catch (IOException ex) {
+                throw new RuntimeException("Couldn't create log segment", ex);
+            }
+            current.unmap();
+            segments.add(next);
+            current = next;
+        }
+        current.append(lastTimestamp, line);
+    }
+
+    /**
+     * Find the messages with timestamps in {@code [from, to)}, as ranges of
+     * the data files (at most one per segment), oldest first. Each region
+     * must be released once it has been read, see {@link Region#release}.
+     */
+    public synchronized List<Region> regions(long from, long to) {
+        List<Region> result = new ArrayList<>();
+        try {
+            for (Segment segment : segments) {
+                if (segment.entries == 0 || segment.lastTimestamp < from)
+                    continue;
+                if (segment.firstTimestamp >= to)
+                    break;
+                Lease index = (segment.indexMap == null) ? acquire(indexPath(segment.number)) : null;
+                try {
+                    FileChannel channel = (index != null) ? index.channel : null;
+                    int start = segment.search(channel, from), end = segment.search(channel, to);
+                    if (start < end) {
+                        long position = segment.startAt(channel, start);
+                        long count = segment.endAt(channel, end - 1) - position;
+                        result.add(new Region(this, acquire(dataPath(segment.number)), position, count));
+                    }
+                } finally {
+                    if (index != null) release(index);
+                }
+            }
+        } catch (IOException ex) {
+            for (Region region : result)
+                region.release();
+            throw new RuntimeException("Couldn't read chat log", ex);
+        }
+        return result;
+    }
+
+    /**
+     * Write the messages with timestamps in {@code [from, to)} to a
+     * (blocking) channel, using {@link FileChannel#transferTo}.
+     *
+     * @return Number of bytes written.
+     */
+    public long replay(long from, long to, WritableByteChannel target) {
+        long total = 0;
+        List<Region> regions = regions(from, to);
+        try {
+            for (Region region : regions) {
+                long position = region.position, end = region.position + region.count;
+                while (position < end)
+                    position += region.channel.transferTo(position, end - position, target);
+                total += region.count;
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            for (Region region : regions)
+                region.release();
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (committer != null) committer.interrupt();
+        current.commit();
+        for (Lease lease : channels.values())
+            closeChannel(lease);
+        channels.clear();
+        segments.clear();
+    }
+
+    /** Parse a time given in milliseconds since the epoch, or ISO-8601 format **/
+    public static long parseTime(String time) {
+        try {
+            return Long.parseLong(time);
+        } catch (NumberFormatException ex) {
+            return Instant.parse(time).toEpochMilli();
+        }
+    }
+
+    /** Tool to dump (part of) a chat log to stdout **/
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: ChatLog <directory> [<from> [<to>]]");
+            System.err.println("Times are in milliseconds since the epoch, or ISO-8601 format.");
+            System.exit(1);
+        }
+        long from = (args.length > 1) ? parseTime(args[1]) : 0;
+        long to = (args.length > 2) ? parseTime(args[2]) : Long.MAX_VALUE;
+        try (ChatLog log = new ChatLog(Paths.get(args[0]));
+                FileOutputStream out = new FileOutputStream(FileDescriptor.out)) {
+            log.replay(from, to, out.getChannel());
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+}
@@ -1,6 +1,7 @@
 package p2;
 
 import java.io.*;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import p1.EditableBufferedReader;
@@ -15,17 +16,31 @@ public class Client implements Runnable {
     private final MySocket socket;
     private final EditableBufferedReader input;
     private final PrintStream output;
+    private final boolean framed;
     private volatile boolean ended = false;
 
     public Client(MySocket socket, EditableBufferedReader input, PrintStream output) {
+        this(socket, input, output, false);
+    }
+
+    /**
+     * @param framed Whether the framed protocol was negotiated on the
+     *               socket (see {@link Protocol#negotiate}).
+     */
+    public Client(MySocket socket, EditableBufferedReader input, PrintStream output, boolean framed) {
         this.socket = socket;
         this.input = input;
         this.output = output;
+        this.framed = framed;
     }
 
     @Override
     public void run() {
         try {
+            // Stay in raw mode between prompts, instead of
+            // switching modes on every line
+            input.setPersistentRaw(true);
+
             // Read nickname
             output.print("Enter your nickname: ");
             output.flush();
@@ -43,15 +58,19 @@ public class Client implements Runnable {
             receiver.start();
 
             // Main loop
-            output.println("Type :q to exit");
+            output.print("Type :q to exit" + (framed ? ", :log <minutes> to see the chat log" : "") + "\r\n");
             while (true) {
                 output.print("\033[1m> ");
                 output.flush();
                 String line = input.readLine();
                 if (line == null || line.equals(":q"))
                     break;
+                if (framed && line.startsWith(":log ")) {
+                    requestLog(line.substring(5).trim());
+                    continue;
+                }
                 if (line.length() > 0)
-                    socket.print(line + "\n");
+                    socket.print((framed ? Protocol.escape(line) : line) + "\n");
             }
 
             // Send EOF to server, wait for receiver thread to finish
@@ -62,18 +81,32 @@ public class Client implements Runnable {
             Logger.getLogger(Client.class.getName()).log(Level.SEVERE,
                     "Unexpected exception in client thread", ex);
         } finally {
+            EditableBufferedReader.unsetRaw();
             socket.close();
         }
     }
 
+    /** Request the messages logged in the last minutes **/
+    private void requestLog(String minutes) {
+        try {
+            long now = System.currentTimeMillis();
+            socket.print(Protocol.logRequest(now - (long) (Double.parseDouble(minutes) * 60000), now));
+        } catch (NumberFormatException ex) {
+            printLine("[Invalid number of minutes]");
+        }
+    }
+
     public void receiveThread() {
         String line;
         while ((line = socket.readLine()) != null) {
-            output.print("\033[s\033[m\n\033[A\033[L" + line + "\033[u\033[B\033[1m");
-            output.flush();
+            if (framed)
+                Protocol.decode(line, true, printer);
+            else
+                printLine(line);
         }
 
-        output.println("\n\033[mConnection ended by server.");
+        output.print("\r\n\033[mConnection ended by server.\r\n");
+        output.flush();
         if (!ended) {
             // Currently no good way to interrupt the main thread loop,
             // so just exit
@@ -81,23 +114,66 @@ public class Client implements Runnable {
         }
     }
 
+    private void printLine(String line) {
+        output.print("\033[s\033[m\n\033[A\033[L" + line + "\033[u\033[B\033[1m");
+        output.flush();
+    }
+
+    /** Prints framed events like their legacy counterparts **/
+    private final Protocol.Handler printer = new Protocol.Handler() {
+        public void joined(String nick) {
+            printLine("[" + nick + " joined the room]");
+        }
+        public void left(String nick) {
+            printLine("[" + nick + " left the room]");
+        }
+        public void message(String nick, String text) {
+            printLine(nick + ": " + text);
+        }
+        public void participantCount(int count) {
+            printLine("[" + count + " participants in the room]");
+        }
+        /** Only the first page is requested, as there's no list to keep updated **/
+        public void participants(List<String> nicks) {
+            if (!nicks.isEmpty())
+                printLine("[current participants: " + String.join(", ", nicks) + "]");
+        }
+        public void info(String text) {
+            printLine("[" + text + "]");
+        }
+        public void error(String text) {
+            printLine("Error: " + text);
+        }
+    };
+
     public static void main(String[] args) {
         if (args.length < 1 || args.length > 2) {
-            System.err.println("Usage: client.js <hostname> [<port>]");
+            System.err.println("Usage: java p2.Client <hostname> [<port>] | unix:<path>");
             System.exit(1);
         }
 
+        // Negotiate the framed protocol, unless told not to (chat.protocol=1),
+        // and compression if asked to (chat.deflate=true).
+        // Legacy servers close the connection when rejecting it, so connect again.
         MySocket socket = null;
+        boolean framed = false;
         try {
-            socket = new MySocket(args[0], args.length > 1 ? Integer.parseInt(args[1]) : 3500);
-        } catch (IOException ex) {
+            String host = args[0];
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 3500;
+            socket = MySocket.connect(host, port);
+            if (Integer.getInteger("chat.protocol", Protocol.VERSION) >= Protocol.VERSION
+                    && !(framed = Protocol.negotiate(socket, Boolean.getBoolean("chat.deflate")))) {
+                socket.close();
+                socket = MySocket.connect(host, port);
+            }
+        } catch (IOException | RuntimeException ex) {
             System.err.println("Failed connecting to server: " + ex.getMessage());
             System.exit(1);
         }
         System.out.println("Connected to server.");
 
         EditableBufferedReader input = new EditableBufferedReader(new InputStreamReader(System.in));
-        Client client = new Client(socket, input, System.out);
+        Client client = new Client(socket, input, System.out, framed);
         client.run();
     }
 
@@ -0,0 +1,140 @@
+package p2;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative long values (typically latencies, in
+ * nanoseconds) with log-linear buckets, in the style of HdrHistogram:
+ * values are recorded with a relative error below 1/32 (~3%) over the
+ * whole range, using a fixed amount of memory.
+ *
+ * Only one thread may write to a histogram at a time: {@link #record},
+ * {@link #add} (into this one) and {@link #reset} update the counters
+ * with plain read-then-{@code lazySet} steps, not atomic increments, so
+ * concurrent writers would lose updates. Callers with several writers
+ * have to serialize them, as {@link Tracer} does with a lock per stripe.
+ * Other threads can read the histogram (or {@link #add} it into another
+ * one) at any time without locking, and will see each counter's value
+ * at some recent point, which is enough for periodic reporting.
+ *
+ * @author Alba Mendez
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int indexFor(long value) {
+        if (value < 2 * SUB)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (exponent + 1) * SUB + (int) (value >>> exponent) - SUB;
+    }
+
+    /** Highest value that maps to the passed bucket **/
+    private static long highestValueAt(int index) {
+        if (index < 2 * SUB)
+            return index;
+        int exponent = index / SUB - 1;
+        long mantissa = index % SUB + SUB;
+        return ((mantissa + 1) << exponent) - 1;
+    }
+
+    /** Record a value (negative values are recorded as zero) **/
+    public void record(long value) {
+        value = Math.max(value, 0);
+        int index = indexFor(value);
+        counts.lazySet(index, counts.get(index) + 1);
+        count.lazySet(count.get() + 1);
+        sum.lazySet(sum.get() + value);
+        if (value > max.get())
+            max.lazySet(value);
+    }
+
+    /** Add the values recorded in another histogram to this one **/
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = other.counts.get(i);
+            if (n != 0) counts.lazySet(i, counts.get(i) + n);
+        }
+        count.lazySet(count.get() + other.count.get());
+        sum.lazySet(sum.get() + other.sum.get());
+        if (other.max.get() > max.get())
+            max.lazySet(other.max.get());
+    }
+
+    /** Clear all recorded values **/
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.lazySet(i, 0);
+        count.lazySet(0);
+        sum.lazySet(0);
+        max.lazySet(0);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Get the value at the passed percentile, that is, the lowest value
+     * such that the passed percentage of the recorded values are lower or
+     * equal to it (within the precision of the histogram).
+     *
+     * @param percentile Percentile, from 0 to 100.
+     * @return The value, or 0 if the histogram is empty.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts.get(i);
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestValueAt(i), getMax());
+        }
+        return 0;
+    }
+
+    /** Summary with count, mean, percentiles and maximum **/
+    public String summary() {
+        return String.format("n=%d mean=%.1f p50=%d p90=%d p99=%d p99.9=%d max=%d",
+                getCount(), getMean(), getValueAtPercentile(50), getValueAtPercentile(90),
+                getValueAtPercentile(99), getValueAtPercentile(99.9), getMax());
+    }
+
+    /** Like {@link #summary()}, but formats values as durations in nanoseconds **/
+    public String durationSummary() {
+        return String.format("n=%d mean=%s p50=%s p90=%s p99=%s p99.9=%s max=%s",
+                getCount(), formatNanos((long) getMean()),
+                formatNanos(getValueAtPercentile(50)), formatNanos(getValueAtPercentile(90)),
+                formatNanos(getValueAtPercentile(99)), formatNanos(getValueAtPercentile(99.9)),
+                formatNanos(getMax()));
+    }
+
+    public static String formatNanos(long nanos) {
+        if (nanos < 1000) return nanos + "ns";
+        if (nanos < 1000000) return String.format("%.1fus", nanos / 1e3);
+        if (nanos < 1000000000) return String.format("%.1fms", nanos / 1e6);
+        return String.format("%.2fs", nanos / 1e9);
+    }
+
+}
@@ -0,0 +1,89 @@
+package p2;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ring buffer with the last messages sent to the room, encoded in both
+ * protocols, so they can be replayed to peers when they join. Only chat
+ * messages are kept: replaying joins and leaves would mess with the
+ * participant list of the clients.
+ *
+ * Messages are kept as the arrays that were written to the peers, so
+ * adding one doesn't allocate or copy anything. Each message gets a
+ * sequence number, so that servers where messages are added and broadcast
+ * concurrently can tell if a message was already replayed to a peer.
+ *
+ * @author Alba Mendez
+ */
+public class History {
+
+    private final byte[][] legacy;
+    private final byte[][] framed;
+    private int head;
+    private int size;
+    private long sequence;
+
+    /** @param depth Number of messages to keep **/
+    public History(int depth) {
+        if (depth < 1)
+            throw new IllegalArgumentException("Depth must be positive");
+        legacy = new byte[depth][];
+        framed = new byte[depth][];
+    }
+
+    public int getDepth() {
+        return legacy.length;
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /** Sequence number of the last message added, or 0 if none **/
+    public synchronized long getLastSequence() {
+        return sequence;
+    }
+
+    /**
+     * Add a message, evicting the oldest one if full. The arrays must not
+     * be modified afterwards.
+     *
+     * @return Sequence number of the message (starting at 1).
+     */
+    public synchronized long add(byte[] legacy, byte[] framed) {
+        int i = (head + size) % this.legacy.length;
+        this.legacy[i] = legacy;
+        this.framed[i] = framed;
+        if (size < this.legacy.length)
+            size++;
+        else
+            head = (head + 1) % this.legacy.length;
+        return ++sequence;
+    }
+
+    /** Get the messages (oldest first) as buffers, for a gathering write **/
+    public synchronized ByteBuffer[] replay(boolean framed) {
+        byte[][] entries = framed ? this.framed : legacy;
+        ByteBuffer[] result = new ByteBuffer[size];
+        for (int i = 0; i < size; i++)
+            result[i] = ByteBuffer.wrap(entries[(head + i) % entries.length]);
+        return result;
+    }
+
+    /** Get the messages (oldest first) concatenated, for a single write to a stream **/
+    public synchronized byte[] toByteArray(boolean framed) {
+        byte[][] entries = framed ? this.framed : legacy;
+        int length = 0;
+        for (int i = 0; i < size; i++)
+            length += entries[(head + i) % entries.length].length;
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (int i = 0; i < size; i++) {
+            byte[] entry = entries[(head + i) % entries.length];
+            System.arraycopy(entry, 0, result, offset, entry.length);
+            offset += entry.length;
+        }
+        return result;
+    }
+
+}
@@ -3,6 +3,8 @@ package p2;
 import java.io.*;
 import java.net.*;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 /**
  * Class that encapsulates an instance of {@link Socket},
@@ -11,6 +13,7 @@ import java.nio.channels.ServerSocketChannel;
  * <ul>
  * <li> Thrown exceptions are encapsulated into runtime exceptions
  * <li> Returned sockets are wrapped in {@link MySocket} instances
+ * <li> It can listen on a Unix domain socket (see {@link UnixSockets})
  * </ul>
  *
  * @see ServerSocket
@@ -18,14 +21,37 @@ import java.nio.channels.ServerSocketChannel;
  */
 public class MyServerSocket implements Closeable {
 
+    /** Wrapped socket, or null for Unix domain sockets (which don't have one) **/
     private final ServerSocket orig;
+    private final ServerSocketChannel unix;
+    private final Path path;
 
     private MyServerSocket(ServerSocket orig) {
         this.orig = orig;
+        this.unix = null;
+        this.path = null;
+    }
+
+    /**
+     * Listen on a Unix domain socket at the passed path. The socket file
+     * is removed when closed. Methods for TCP options throw
+     * {@link UnsupportedOperationException} on these sockets.
+     */
+    public MyServerSocket(Path path) throws IOException {
+        this.orig = null;
+        this.unix = UnixSockets.bind(path);
+        this.path = path;
     }
 
     // REEXPORTED METHODS
 
+    /** The wrapped socket, for methods that Unix domain sockets don't support **/
+    private ServerSocket socket() {
+        if (orig == null)
+            throw new UnsupportedOperationException("Not supported by Unix domain sockets");
+        return orig;
+    }
+
     /**
      * @see ServerSocket#ServerSocket()
      */
@@ -59,7 +85,10 @@ public class MyServerSocket implements Closeable {
      */
     public void bind(SocketAddress endpoint) {
         try {
-            orig.bind(endpoint);
+            if (unix != null)
+                unix.bind(endpoint);
+            else
+                orig.bind(endpoint);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
@@ -70,7 +99,7 @@ public class MyServerSocket implements Closeable {
      */
     public void bind(SocketAddress endpoint, int backlog) {
         try {
-            orig.bind(endpoint, backlog);
+            socket().bind(endpoint, backlog);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
@@ -80,21 +109,27 @@ public class MyServerSocket implements Closeable {
      * @see ServerSocket#getInetAddress()
      */
     public InetAddress getInetAddress() {
-        return orig.getInetAddress();
+        return socket().getInetAddress();
     }
 
     /**
      * @see ServerSocket#getLocalPort()
      */
     public int getLocalPort() {
-        return orig.getLocalPort();
+        return socket().getLocalPort();
     }
 
     /**
      * @see ServerSocket#getLocalSocketAddress()
      */
     public SocketAddress getLocalSocketAddress() {
-        return orig.getLocalSocketAddress();
+        if (unix == null)
+            return orig.getLocalSocketAddress();
+        try {
+            return unix.getLocalAddress();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
     }
 
     /**
@@ -105,7 +140,7 @@ public class MyServerSocket implements Closeable {
      */
     public MySocket accept() {
         try {
-            return new MySocket(orig.accept());
+            return (unix != null) ? new MySocket(unix.accept()) : new MySocket(orig.accept());
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
@@ -116,7 +151,12 @@ public class MyServerSocket implements Closeable {
      */
     public void close() {
         try {
-            orig.close();
+            if (unix != null) {
+                unix.close();
+                Files.deleteIfExists(path);
+            } else {
+                orig.close();
+            }
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
@@ -126,21 +166,21 @@ public class MyServerSocket implements Closeable {
      * @see ServerSocket#getChannel()
      */
     public ServerSocketChannel getChannel() {
-        return orig.getChannel();
+        return (unix != null) ? unix : orig.getChannel();
     }
 
     /**
      * @see ServerSocket#isBound()
      */
     public boolean isBound() {
-        return orig.isBound();
+        return (unix != null) || orig.isBound();
     }
 
     /**
      * @see ServerSocket#isClosed()
      */
     public boolean isClosed() {
-        return orig.isClosed();
+        return (unix != null) ? !unix.isOpen() : orig.isClosed();
     }
 
     /**
@@ -148,7 +188,7 @@ public class MyServerSocket implements Closeable {
      */
     public synchronized void setSoTimeout(int timeout) {
         try {
-            orig.setSoTimeout(timeout);
+            socket().setSoTimeout(timeout);
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -159,7 +199,7 @@ public class MyServerSocket implements Closeable {
      */
     public synchronized int getSoTimeout() {
         try {
-            return orig.getSoTimeout();
+            return socket().getSoTimeout();
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
@@ -170,7 +210,7 @@ public class MyServerSocket implements Closeable {
      */
     public void setReuseAddress(boolean on) {
         try {
-            orig.setReuseAddress(on);
+            socket().setReuseAddress(on);
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -181,7 +221,7 @@ public class MyServerSocket implements Closeable {
      */
     public boolean getReuseAddress() {
         try {
-            return orig.getReuseAddress();
+            return socket().getReuseAddress();
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -191,7 +231,7 @@ public class MyServerSocket implements Closeable {
      * @see ServerSocket#toString()
      */
     public String toString() {
-        return orig.toString();
+        return (unix != null) ? unix.toString() : orig.toString();
     }
 
     public static synchronized void setSocketFactory(SocketImplFactory fac) {
@@ -207,7 +247,7 @@ public class MyServerSocket implements Closeable {
      */
     public synchronized void setReceiveBufferSize(int size) {
         try {
-            orig.setReceiveBufferSize(size);
+            socket().setReceiveBufferSize(size);
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -218,7 +258,7 @@ public class MyServerSocket implements Closeable {
      */
     public synchronized int getReceiveBufferSize() {
         try {
-            return orig.getReceiveBufferSize();
+            return socket().getReceiveBufferSize();
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -228,7 +268,7 @@ public class MyServerSocket implements Closeable {
      * @see ServerSocket#setPerformancePreferences(int, int, int)
      */
     public void setPerformancePreferences(int connectionTime, int latency, int bandwidth) {
-        orig.setPerformancePreferences(connectionTime, latency, bandwidth);
+        socket().setPerformancePreferences(connectionTime, latency, bandwidth);
     }
 
 }
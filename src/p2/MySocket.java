@@ -2,8 +2,21 @@ package p2;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Scanner;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import java.util.regex.Pattern;
 
 /**
@@ -21,16 +34,54 @@ import java.util.regex.Pattern;
  */
 public class MySocket implements Closeable {
 
+    /** Wrapped socket, or null for Unix domain sockets (which don't have one) **/
     private final Socket orig;
+    private final ChannelStreams unix;
     private PrintStream send;
     private BufferedReader reader;
     private Scanner recv;
+    private Deflater deflater;
+    private Inflater inflater;
 
     MySocket(Socket orig) throws IOException {
+        this(orig, null);
+    }
+
+    /** Wrap a connected Unix domain socket channel **/
+    MySocket(SocketChannel channel) throws IOException {
+        this(null, new ChannelStreams(channel));
+    }
+
+    private MySocket(Socket orig, ChannelStreams unix) throws IOException {
         this.orig = orig;
-        reader = new BufferedReader(new InputStreamReader(orig.getInputStream()));
+        this.unix = unix;
+        reader = new BufferedReader(new InputStreamReader(getInputStream()));
         recv = new Scanner(reader);
-        send = new PrintStream(orig.getOutputStream());
+        send = new PrintStream(getOutputStream());
+    }
+
+    /**
+     * Connect to the Unix domain socket at the passed path (see
+     * {@link UnixSockets}). Methods for TCP options throw
+     * {@link UnsupportedOperationException} on these sockets.
+     */
+    public MySocket(Path path) throws IOException {
+        this(UnixSockets.connect(path));
+    }
+
+    /** Whether this is a Unix domain socket **/
+    public boolean isUnixDomain() {
+        return unix != null;
+    }
+
+    /**
+     * Connect to a host and port, or to a Unix domain socket if the host
+     * is {@code unix:<path>} (then the port is ignored).
+     */
+    public static MySocket connect(String host, int port) throws IOException {
+        if (host.startsWith("unix:"))
+            return new MySocket(Paths.get(host.substring("unix:".length())));
+        return new MySocket(host, port);
     }
 
     public String readLine() {
@@ -117,8 +168,174 @@ public class MySocket implements Closeable {
         send.print(s);
     }
 
+    /** Write already encoded data **/
+    public void write(byte[] b) {
+        send.write(b, 0, b.length);
+    }
+
+    /**
+     * Compress the data from now on, in both directions, as a raw deflate
+     * stream that is flushed after every print or write (see
+     * {@link Protocol#DEFLATE}). The compression context is kept for the
+     * whole connection. The streams returned by {@link #getInputStream}
+     * and {@link #getOutputStream} are still the uncompressed ones.
+     */
+    public void enableCompression() {
+        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        inflater = new Inflater(true);
+        send = new PrintStream(new DeflaterOutputStream(getOutputStream(), deflater, true), true);
+        reader = new BufferedReader(new InputStreamReader(new Decompressor(getInputStream(), inflater)));
+        recv = new Scanner(reader);
+    }
+
+    /**
+     * Streams of a Unix domain socket channel, which has no {@link Socket}
+     * adapter. Those of {@link Channels} can't be used: they lock the
+     * channel, so a thread blocked reading would block writers too. Instead
+     * the channel is non-blocking, and reads and writes wait on their own
+     * selectors (which also gives reads a timeout, as with
+     * {@link #setSoTimeout}). Like socket streams, each one is meant to be
+     * used by one thread at a time.
+     */
+    private static class ChannelStreams implements Closeable {
+        final SocketChannel channel;
+        final Selector readSelector, writeSelector;
+        volatile int timeout;
+
+        ChannelStreams(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            channel.configureBlocking(false);
+            readSelector = Selector.open();
+            writeSelector = Selector.open();
+            channel.register(readSelector, SelectionKey.OP_READ);
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        }
+
+        final InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+                int n;
+                while ((n = channel.read(buf)) == 0) {
+                    if (await(readSelector, timeout) == 0 && timeout > 0 && channel.isOpen())
+                        throw new SocketTimeoutException("Read timed out");
+                }
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                ChannelStreams.this.close();
+            }
+        };
+
+        final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+                while (buf.hasRemaining())
+                    if (channel.write(buf) == 0)
+                        await(writeSelector, 0);
+            }
+
+            @Override
+            public void close() throws IOException {
+                ChannelStreams.this.close();
+            }
+        };
+
+        /** Wait until the channel is ready (or closed) **/
+        private static int await(Selector selector, int timeout) throws IOException {
+            try {
+                int ready = selector.select(timeout);
+                selector.selectedKeys().clear();
+                return ready;
+            } catch (ClosedSelectorException ex) {
+                throw new SocketException("Socket closed");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                readSelector.close();
+                writeSelector.close();
+            }
+        }
+    }
+
+    /**
+     * Input stream for {@link #enableCompression}. The deflate stream is
+     * never finished (connections just end), so the end of the input is the
+     * end of the data. And it doesn't report data as available, otherwise
+     * the reader would block trying to fill its buffer instead of returning
+     * the line it already has.
+     */
+    private static class Decompressor extends InflaterInputStream {
+        Decompressor(InputStream in, Inflater inflater) {
+            super(in, inflater);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            } catch (EOFException ex) {
+                return -1;
+            }
+        }
+
+        @Override
+        public int available() {
+            return 0;
+        }
+    }
+
+    /** Whether {@link #enableCompression} was called **/
+    public boolean isCompressed() {
+        return deflater != null;
+    }
+
+    /**
+     * Write part of a file, with {@link FileChannel#transferTo}. This is
+     * only zero-copy if the socket has a channel and isn't compressed;
+     * otherwise the data is copied through the output stream.
+     */
+    public void write(FileChannel file, long position, long count) {
+        WritableByteChannel target = (orig != null && orig.getChannel() != null && deflater == null)
+                ? orig.getChannel() : Channels.newChannel(send);
+        try {
+            long end = position + count;
+            while (position < end)
+                position += file.transferTo(position, end - position, target);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
     // REEXPORTED METHODS
 
+    /** The wrapped socket, for methods that Unix domain sockets don't support **/
+    private Socket socket() {
+        if (orig == null)
+            throw new UnsupportedOperationException("Not supported by Unix domain sockets");
+        return orig;
+    }
+
     /**
      * @see Socket#Socket(String, int)
      */
@@ -167,55 +384,69 @@ public class MySocket implements Closeable {
      * @see Socket#getInetAddress()
      */
     public InetAddress getInetAddress() {
-        return orig.getInetAddress();
+        return socket().getInetAddress();
     }
 
     /**
      * @see Socket#getLocalAddress()
      */
     public InetAddress getLocalAddress() {
-        return orig.getLocalAddress();
+        return socket().getLocalAddress();
     }
 
     /**
      * @see Socket#getPort()
      */
     public int getPort() {
-        return orig.getPort();
+        return socket().getPort();
     }
 
     /**
      * @see Socket#getLocalPort()
      */
     public int getLocalPort() {
-        return orig.getLocalPort();
+        return socket().getLocalPort();
     }
 
     /**
      * @see Socket#getRemoteSocketAddress()
      */
     public SocketAddress getRemoteSocketAddress() {
-        return orig.getRemoteSocketAddress();
+        if (unix == null)
+            return orig.getRemoteSocketAddress();
+        try {
+            return unix.channel.getRemoteAddress();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
     }
 
     /**
      * @see Socket#getLocalSocketAddress()
      */
     public SocketAddress getLocalSocketAddress() {
-        return orig.getLocalSocketAddress();
+        if (unix == null)
+            return orig.getLocalSocketAddress();
+        try {
+            return unix.channel.getLocalAddress();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
     }
 
     /**
      * @see Socket#getChannel()
      */
     public SocketChannel getChannel() {
-        return orig.getChannel();
+        return (unix != null) ? unix.channel : orig.getChannel();
     }
 
     /**
      * @see Socket#getInputStream()
      */
     public InputStream getInputStream() {
+        if (unix != null)
+            return unix.in;
         try {
             return orig.getInputStream();
         } catch (IOException ex) {
@@ -227,6 +458,8 @@ public class MySocket implements Closeable {
      * @see Socket#getOutputStream()
      */
     public OutputStream getOutputStream() {
+        if (unix != null)
+            return unix.out;
         try {
             return orig.getOutputStream();
         } catch (IOException ex) {
@@ -239,7 +472,7 @@ public class MySocket implements Closeable {
      */
     public void setTcpNoDelay(boolean on) {
         try {
-            orig.setTcpNoDelay(on);
+            socket().setTcpNoDelay(on);
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -250,7 +483,7 @@ public class MySocket implements Closeable {
      */
     public boolean getTcpNoDelay() {
         try {
-            return orig.getTcpNoDelay();
+            return socket().getTcpNoDelay();
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -261,7 +494,7 @@ public class MySocket implements Closeable {
      */
     public void setSoLinger(boolean on, int linger) {
         try {
-            orig.setSoLinger(on, linger);
+            socket().setSoLinger(on, linger);
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -272,7 +505,7 @@ public class MySocket implements Closeable {
      */
     public int getSoLinger() {
         try {
-            return orig.getSoLinger();
+            return socket().getSoLinger();
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -283,7 +516,7 @@ public class MySocket implements Closeable {
      */
     public void sendUrgentData(int data) {
         try {
-            orig.sendUrgentData(data);
+            socket().sendUrgentData(data);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
@@ -294,7 +527,7 @@ public class MySocket implements Closeable {
      */
     public void setOOBInline(boolean on) {
         try {
-            orig.setOOBInline(on);
+            socket().setOOBInline(on);
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -305,7 +538,7 @@ public class MySocket implements Closeable {
      */
     public boolean getOOBInline() {
         try {
-            return orig.getOOBInline();
+            return socket().getOOBInline();
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -315,6 +548,10 @@ public class MySocket implements Closeable {
      * @see Socket#setSoTimeout(int)
      */
     public synchronized void setSoTimeout(int timeout) {
+        if (unix != null) {
+            unix.timeout = timeout;
+            return;
+        }
         try {
             orig.setSoTimeout(timeout);
         } catch (SocketException ex) {
@@ -326,6 +563,8 @@ public class MySocket implements Closeable {
      * @see Socket#getSoTimeout()
      */
     public synchronized int getSoTimeout() {
+        if (unix != null)
+            return unix.timeout;
         try {
             return orig.getSoTimeout();
         } catch (SocketException ex) {
@@ -338,7 +577,7 @@ public class MySocket implements Closeable {
      */
     public synchronized void setSendBufferSize(int size) {
         try {
-            orig.setSendBufferSize(size);
+            socket().setSendBufferSize(size);
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -349,7 +588,7 @@ public class MySocket implements Closeable {
      */
     public synchronized int getSendBufferSize() {
         try {
-            return orig.getSendBufferSize();
+            return socket().getSendBufferSize();
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -360,7 +599,7 @@ public class MySocket implements Closeable {
      */
     public synchronized void setReceiveBufferSize(int size) {
         try {
-            orig.setReceiveBufferSize(size);
+            socket().setReceiveBufferSize(size);
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -371,7 +610,7 @@ public class MySocket implements Closeable {
      */
     public synchronized int getReceiveBufferSize() {
         try {
-            return orig.getReceiveBufferSize();
+            return socket().getReceiveBufferSize();
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -382,7 +621,7 @@ public class MySocket implements Closeable {
      */
     public void setKeepAlive(boolean on) {
         try {
-            orig.setKeepAlive(on);
+            socket().setKeepAlive(on);
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -393,7 +632,7 @@ public class MySocket implements Closeable {
      */
     public boolean getKeepAlive() {
         try {
-            return orig.getKeepAlive();
+            return socket().getKeepAlive();
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -404,7 +643,7 @@ public class MySocket implements Closeable {
      */
     public void setTrafficClass(int tc) {
         try {
-            orig.setTrafficClass(tc);
+            socket().setTrafficClass(tc);
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -415,7 +654,7 @@ public class MySocket implements Closeable {
      */
     public int getTrafficClass() {
         try {
-            return orig.getTrafficClass();
+            return socket().getTrafficClass();
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -426,7 +665,7 @@ public class MySocket implements Closeable {
      */
     public void setReuseAddress(boolean on) {
         try {
-            orig.setReuseAddress(on);
+            socket().setReuseAddress(on);
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -437,7 +676,7 @@ public class MySocket implements Closeable {
      */
     public boolean getReuseAddress() {
         try {
-            return orig.getReuseAddress();
+            return socket().getReuseAddress();
         } catch (SocketException ex) {
             throw new RuntimeException(ex);
         }
@@ -448,9 +687,17 @@ public class MySocket implements Closeable {
      */
     public synchronized void close() {
         try {
-            orig.close();
+            if (unix != null)
+                unix.close();
+            else
+                orig.close();
         } catch (IOException ex) {
             throw new RuntimeException(ex);
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+                inflater.end();
+            }
         }
     }
 
@@ -459,7 +706,10 @@ public class MySocket implements Closeable {
      */
     public void shutdownInput() {
         try {
-            orig.shutdownInput();
+            if (unix != null)
+                unix.channel.shutdownInput();
+            else
+                orig.shutdownInput();
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
@@ -470,7 +720,10 @@ public class MySocket implements Closeable {
      */
     public void shutdownOutput() {
         try {
-            orig.shutdownOutput();
+            if (unix != null)
+                unix.channel.shutdownOutput();
+            else
+                orig.shutdownOutput();
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
@@ -480,49 +733,49 @@ public class MySocket implements Closeable {
      * @see Socket#toString()
      */
     public String toString() {
-        return orig.toString();
+        return (unix != null) ? unix.channel.toString() : orig.toString();
     }
 
     /**
      * @see Socket#isConnected()
      */
     public boolean isConnected() {
-        return orig.isConnected();
+        return (unix != null) ? unix.channel.isConnected() : orig.isConnected();
     }
 
     /**
      * @see Socket#isBound()
      */
     public boolean isBound() {
-        return orig.isBound();
+        return socket().isBound();
     }
 
     /**
      * @see Socket#isClosed()
      */
     public boolean isClosed() {
-        return orig.isClosed();
+        return (unix != null) ? !unix.channel.isOpen() : orig.isClosed();
     }
 
     /**
      * @see Socket#isInputShutdown()
      */
     public boolean isInputShutdown() {
-        return orig.isInputShutdown();
+        return socket().isInputShutdown();
     }
 
     /**
      * @see Socket#isOutputShutdown()
      */
     public boolean isOutputShutdown() {
-        return orig.isOutputShutdown();
+        return socket().isOutputShutdown();
     }
 
     /**
      * @see Socket#setPerformancePreferences(int, int, int)
      */
     public void setPerformancePreferences(int connectionTime, int latency, int bandwidth) {
-        orig.setPerformancePreferences(connectionTime, latency, bandwidth);
+        socket().setPerformancePreferences(connectionTime, latency, bandwidth);
     }
 
 }
@@ -0,0 +1,398 @@
+package p2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.function.Consumer;
+
+/**
+ * Encoding of the chat protocol, shared by servers and clients.
+ *
+ * <p>The legacy (version 1) protocol is plain text: after the client sends
+ * its nickname, the server sends {@code [current participants: a, b]} or
+ * an {@code Error: ...} line, and then lines like {@code [a joined the room]},
+ * {@code [a left the room]} and {@code a: message}. Clients have to guess
+ * the type of each line from its text, which is ambiguous (a message can
+ * look like a notice).
+ *
+ * <p>In version 2, each line (frame) starts with a type byte followed by
+ * its payload. Fields are separated by tabs, which can't appear in
+ * nicknames:
+ *
+ * <ul>
+ * <li> {@code J<nick>}: a peer joined the room
+ * <li> {@code L<nick>}: a peer left the room
+ * <li> {@code M<nick>\t<text>}: chat message
+ * <li> {@code N<count>}: number of participants in the room, sent after
+ *      joining. Starts a new participant listing.
+ * <li> {@code P<nick>\t<nick>...}: page of the participant listing, in
+ *      ascending order. The first one is sent after {@code N}, the rest
+ *      are sent on request (see below). An empty page ends the listing.
+ * <li> {@code I<text>}: informational notice from the server
+ * <li> {@code E<text>}: error, the server closes the connection after it
+ * <li> {@code O<id>\t<nick>\t<size>\t<name>}: a peer offered a file, which
+ *      can be fetched with {@code %FETCH}
+ * <li> {@code F<id>\t<size>}: reply to {@code %FETCH}, followed by the
+ *      contents of the file (exactly {@code size} bytes, not a line).
+ *      Clients that fetch files have to handle it before {@link #decode}.
+ * </ul>
+ *
+ * In version 2, lines sent by the client that start with {@code %} are
+ * commands (messages starting with {@code %} are escaped by doubling it,
+ * see {@link #escape}):
+ *
+ * <ul>
+ * <li> {@code %NAMES <nick>}: request the page of participants after the
+ *      passed nickname
+ * <li> {@code %LOG <from> <to>}: request the messages in the server's
+ *      {@link ChatLog} with timestamps (milliseconds since the epoch) in
+ *      {@code [from, to)}. They're sent as {@code M} frames, followed by an
+ *      {@code I} frame with {@link #END_OF_LOG}.
+ * <li> {@code %OFFER <size> <name>}: offer a file to the room. The line is
+ *      followed by the contents of the file (exactly {@code size} bytes).
+ * <li> {@code %FETCH <id>}: request an offered file
+ * </ul>
+ *
+ * Clients opt into version 2 by sending {@link #HELLO} before the nickname,
+ * and servers that support it reply with the same line. Legacy servers
+ * reject it as an invalid nickname (see {@link #isLegacyRejection}), so the
+ * client has to reconnect and use the legacy protocol.
+ *
+ * <p>Clients can append options to {@link #HELLO}, separated by spaces,
+ * and the server appends the ones it accepts to its reply. The only option
+ * is {@link #DEFLATE}: if accepted, everything after the reply (in both
+ * directions) is compressed as a raw deflate stream, flushed after each
+ * write. The client must not send anything else until it gets the reply.
+ *
+ * @author Alba Mendez
+ */
+public class Protocol {
+
+    public static final int VERSION = 2;
+    public static final String HELLO = "%PROTO " + VERSION;
+    public static final String DEFLATE = "deflate";
+
+    public static final char JOIN = 'J';
+    public static final char LEAVE = 'L';
+    public static final char MESSAGE = 'M';
+    public static final char PARTICIPANT_COUNT = 'N';
+    public static final char PARTICIPANTS = 'P';
+    public static final char INFO = 'I';
+    public static final char ERROR = 'E';
+    public static final char FILE_OFFER = 'O';
+    public static final char FILE = 'F';
+    public static final char SEPARATOR = '\t';
+    public static final char COMMAND = '%';
+    public static final String NAMES = "%NAMES";
+    public static final String LOG = "%LOG";
+    public static final String END_OF_LOG = "End of log";
+    public static final String OFFER = "%OFFER";
+    public static final String FETCH = "%FETCH";
+
+    /** Nicknames per page of the participant listing **/
+    public static final int PAGE_SIZE = 500;
+
+    private Protocol() {
+    }
+
+    /** Whether a nickname is valid (in both protocols) **/
+    public static boolean isValidNick(String nick) {
+        if (nick.isEmpty()) return false;
+        for (int i = 0; i < nick.length(); i++) {
+            char c = nick.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == ' ' || c == '_' || c == '.' || c == '@' || c == '-'))
+                return false;
+        }
+        return true;
+    }
+
+    /** Whether a line is {@link #HELLO}, with or without options **/
+    public static boolean isHello(String line) {
+        return line != null && (line.equals(HELLO) || line.startsWith(HELLO + " "));
+    }
+
+    /** Options of a {@link #HELLO} line **/
+    public static List<String> helloOptions(String line) {
+        return split(line.substring(HELLO.length()).trim(), ' ');
+    }
+
+    /** Encode {@link #HELLO} (or the reply to it), with the compression option if requested **/
+    public static String hello(boolean deflate) {
+        return HELLO + (deflate ? " " + DEFLATE : "") + "\n";
+    }
+
+    /** Whether the reply to {@link #HELLO} means the server only speaks the legacy protocol **/
+    public static boolean isLegacyRejection(String reply) {
+        return reply != null && reply.startsWith("Error: Invalid characters");
+    }
+
+    public static boolean negotiate(MySocket socket) {
+        return negotiate(socket, false);
+    }
+
+    /**
+     * Try to negotiate version 2 on a fresh connection, before sending the
+     * nickname. If requested and the server accepts it, compression is
+     * enabled on the socket.
+     *
+     * @return True if the server accepted it, false if it's a legacy server
+     *         (which will have closed the connection, so the client needs to
+     *         reconnect).
+     */
+    public static boolean negotiate(MySocket socket, boolean deflate) {
+        socket.print(hello(deflate));
+        String reply = socket.readLine();
+        if (isHello(reply)) {
+            if (deflate && helloOptions(reply).contains(DEFLATE))
+                socket.enableCompression();
+            return true;
+        }
+        if (isLegacyRejection(reply))
+            return false;
+        throw new RuntimeException(reply == null ? "Connection closed unexpectedly" : reply);
+    }
+
+    // ENCODING
+
+    /**
+     * An event broadcast to the room, encoded in both protocols so that
+     * it's only encoded once for all peers.
+     */
+    public static class Encoded {
+        public final String legacy;
+        public final String framed;
+        private byte[] legacyBytes, framedBytes;
+
+        public Encoded(String legacy, String framed) {
+            this.legacy = legacy;
+            this.framed = framed;
+        }
+
+        public String get(boolean framed) {
+            return framed ? this.framed : legacy;
+        }
+
+        /** Get the encoded bytes for a protocol (they're only encoded once, and must not be modified) **/
+        public byte[] bytes(boolean framed) {
+            if (framed)
+                return (framedBytes != null) ? framedBytes : (framedBytes = this.framed.getBytes());
+            return (legacyBytes != null) ? legacyBytes : (legacyBytes = legacy.getBytes());
+        }
+    }
+
+    public static Encoded joined(String nick) {
+        return new Encoded("[" + nick + " joined the room]\n", JOIN + nick + "\n");
+    }
+
+    public static Encoded left(String nick) {
+        return new Encoded("[" + nick + " left the room]\n", LEAVE + nick + "\n");
+    }
+
+    public static Encoded message(String nick, String text) {
+        return new Encoded(nick + ": " + text + "\n", MESSAGE + nick + SEPARATOR + text + "\n");
+    }
+
+    public static Encoded info(String text) {
+        return new Encoded("[" + text + "]\n", INFO + text + "\n");
+    }
+
+    /** A file offer. File names can't contain newlines or tabs, so they're replaced with spaces **/
+    public static Encoded offer(String id, String nick, long size, String name) {
+        name = name.replace('\t', ' ').replace('\n', ' ');
+        return new Encoded("[" + nick + " is sharing " + name + " (" + size + " bytes)]\n",
+                FILE_OFFER + id + SEPARATOR + nick + SEPARATOR + size + SEPARATOR + name + "\n");
+    }
+
+    /** Header sent before the contents of a fetched file (framed protocol) **/
+    public static String file(String id, long size) {
+        return FILE + id + SEPARATOR + size + "\n";
+    }
+
+    public static String participantCount(int count) {
+        return PARTICIPANT_COUNT + Integer.toString(count) + "\n";
+    }
+
+    /** Encode a page of the participant listing (framed protocol) **/
+    public static String participants(Iterable<String> nicks) {
+        return PARTICIPANTS + String.join(String.valueOf(SEPARATOR), nicks) + "\n";
+    }
+
+    /** Get the page of nicknames after the passed one (or the first page, if null) **/
+    public static List<String> page(NavigableSet<String> nicks, String after) {
+        List<String> page = new ArrayList<>();
+        for (String nick : (after == null) ? nicks : nicks.tailSet(after, false)) {
+            if (page.size() == PAGE_SIZE) break;
+            page.add(nick);
+        }
+        return page;
+    }
+
+    /**
+     * Write the legacy participant listing. It has to go in a single line,
+     * but it's encoded and written in pieces of {@link #PAGE_SIZE} nicknames
+     * so that the whole line is never held in memory.
+     */
+    public static void writeLegacyParticipants(Iterable<String> nicks, Consumer<String> writer) {
+        StringBuilder piece = new StringBuilder("[current participants: ");
+        int n = 0;
+        for (String nick : nicks) {
+            if (n > 0) piece.append(", ");
+            piece.append(nick);
+            if (++n % PAGE_SIZE == 0) {
+                writer.accept(piece.toString());
+                piece.setLength(0);
+            }
+        }
+        writer.accept(piece.append("]\n").toString());
+    }
+
+    /** Request for the page of participants after the passed one (framed protocol) **/
+    public static String namesRequest(String after) {
+        return NAMES + " " + after + "\n";
+    }
+
+    /** Request for the logged messages in a time range (framed protocol) **/
+    public static String logRequest(long from, long to) {
+        return LOG + " " + from + " " + to + "\n";
+    }
+
+    /** Line to send before the contents of an offered file (framed protocol) **/
+    public static String offerRequest(long size, String name) {
+        return OFFER + " " + size + " " + name.replace('\n', ' ') + "\n";
+    }
+
+    public static String fetchRequest(String id) {
+        return FETCH + " " + id + "\n";
+    }
+
+    /** Escape a message to be sent by a client using the framed protocol **/
+    public static String escape(String message) {
+        return (!message.isEmpty() && message.charAt(0) == COMMAND) ? COMMAND + message : message;
+    }
+
+    /** Whether a line received from a client using the framed protocol is a command **/
+    public static boolean isCommand(String line) {
+        return line.length() > 1 && line.charAt(0) == COMMAND && line.charAt(1) != COMMAND;
+    }
+
+    /** Undo {@link #escape}, for lines that aren't commands **/
+    public static String unescape(String line) {
+        return (!line.isEmpty() && line.charAt(0) == COMMAND) ? line.substring(1) : line;
+    }
+
+    public static String error(String text, boolean framed) {
+        return (framed ? ERROR + text : "Error: " + text) + "\n";
+    }
+
+    // DECODING
+
+    /** Receives decoded events, see {@link #decode} **/
+    public static interface Handler {
+        void joined(String nick);
+        void left(String nick);
+        void message(String nick, String text);
+        /** A new participant listing starts, with the passed number of participants **/
+        void participantCount(int count);
+        /**
+         * Page of the participant listing. In the legacy protocol the whole
+         * listing comes in a single page, right after the count.
+         */
+        void participants(List<String> nicks);
+        /** Server notice, or (legacy) a line that couldn't be recognized **/
+        void info(String text);
+        void error(String text);
+        /** A peer offered a file. By default, it's shown as a notice. **/
+        default void offer(String id, String nick, long size, String name) {
+            info(nick + " is sharing " + name + " (" + size + " bytes)");
+        }
+    }
+
+    /**
+     * Decode a line received from the server (without the newline) and
+     * pass it to the handler. Framed lines are dispatched on their type
+     * byte; unknown types are ignored. Legacy lines are recognized by
+     * their text.
+     */
+    public static void decode(String line, boolean framed, Handler handler) {
+        if (framed) {
+            if (line.isEmpty()) return;
+            String payload = line.substring(1);
+            switch (line.charAt(0)) {
+                case JOIN: handler.joined(payload); break;
+                case LEAVE: handler.left(payload); break;
+                case MESSAGE:
+                    int i = payload.indexOf(SEPARATOR);
+                    if (i != -1)
+                        handler.message(payload.substring(0, i), payload.substring(i + 1));
+                    break;
+                case PARTICIPANT_COUNT:
+                    try {
+                        handler.participantCount(Integer.parseInt(payload));
+                    } catch (NumberFormatException ex) {
+                    }
+                    break;
+                case PARTICIPANTS: handler.participants(split(payload, SEPARATOR)); break;
+                case INFO: handler.info(payload); break;
+                case ERROR: handler.error(payload); break;
+                case FILE_OFFER:
+                    List<String> fields = split(payload, SEPARATOR);
+                    if (fields.size() == 4) {
+                        try {
+                            handler.offer(fields.get(0), fields.get(1), Long.parseLong(fields.get(2)), fields.get(3));
+                        } catch (NumberFormatException ex) {
+                        }
+                    }
+                    break;
+            }
+            return;
+        }
+
+        String text;
+        if ((text = unwrap(line, "[current participants: ", "]")) != null) {
+            List<String> nicks = Arrays.asList(text.split(", "));
+            handler.participantCount(nicks.size());
+            handler.participants(nicks);
+        } else if ((text = unwrap(line, "[", " joined the room]")) != null) {
+            handler.joined(text);
+        } else if ((text = unwrap(line, "[", " left the room]")) != null) {
+            handler.left(text);
+        } else if ((text = unwrap(line, "Error: ", "")) != null) {
+            handler.error(text);
+        } else if ((text = unwrap(line, "[", "]")) != null) {
+            handler.info(text);
+        } else {
+            int i = line.indexOf(": ");
+            if (i == -1)
+                handler.info(line);
+            else
+                handler.message(line.substring(0, i), line.substring(i + 2));
+        }
+    }
+
+    /**
+     * If the line has the passed prefix and suffix, and something in
+     * between, return that. Otherwise return null.
+     */
+    private static String unwrap(String line, String prefix, String suffix) {
+        if (line.length() > prefix.length() + suffix.length()
+                && line.startsWith(prefix) && line.endsWith(suffix))
+            return line.substring(prefix.length(), line.length() - suffix.length());
+        return null;
+    }
+
+    private static List<String> split(String text, char separator) {
+        if (text.isEmpty()) return Collections.emptyList();
+        List<String> result = new ArrayList<>();
+        int start = 0, end;
+        while ((end = text.indexOf(separator, start)) != -1) {
+            result.add(text.substring(start, end));
+            start = end + 1;
+        }
+        result.add(text.substring(start));
+        return result;
+    }
+
+}
@@ -1,11 +1,26 @@
 package p2;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.ObjectName;
 
 /**
  * Chat server.
@@ -14,15 +29,102 @@ import java.util.logging.Logger;
  */
 public class Server implements Runnable {
 
+    /**
+     * What to do when a message doesn't fit in the send queue of a peer
+     * (because it's not reading fast enough).
+     */
+    public static enum OverflowPolicy {
+        /** Discard the message **/
+        DROP,
+        /**
+         * Discard the whole backlog, and queue a notice with the number
+         * of skipped messages followed by the message
+         */
+        COALESCE,
+        /** Discard the backlog, queue a notice and disconnect the peer **/
+        DISCONNECT,
+    }
+
     private class Message {
-        String data;
-        Message(String data) {
-            this.data = data;
+        /** The message encoded in each protocol (null for EOF), written as is to every peer **/
+        byte[] legacy, framed;
+        /** For overflow notices, number of messages skipped **/
+        int skipped;
+        /** Sequence number in the history, or 0 if not kept **/
+        long sequence;
+        /**
+         * For log replays, the parts of the log to send (the message is
+         * empty). They aren't counted against the queue budget.
+         */
+        List<ChatLog.Region> log;
+        /** Trace timestamps (zero if message isn't traced) **/
+        long received, parsed, enqueued;
+        Message(Protocol.Encoded data) {
+            if (data != null) {
+                legacy = data.bytes(false);
+                framed = data.bytes(true);
+            }
+        }
+        Message copy() {
+            Message copy = new Message(null);
+            copy.legacy = legacy;
+            copy.framed = framed;
+            copy.sequence = sequence;
+            return copy;
+        }
+        byte[] get(boolean framed) {
+            return framed ? this.framed : legacy;
+        }
+        /** Let the log close the channels of a replay, once sent or dropped **/
+        void release() {
+            if (log != null)
+                for (ChatLog.Region region : log)
+                    region.release();
+        }
+        int size(boolean framed) {
+            return get(framed).length;
         }
     }
 
     private final MyServerSocket serverSocket;
-    private final ConcurrentHashMap<String, Connection> peers = new ConcurrentHashMap<>();
+    private MyServerSocket unixSocket;
+    /** Peers by nickname, sorted so the participant listing can be paged **/
+    private final ConcurrentSkipListMap<String, Connection> peers = new ConcurrentSkipListMap<>();
+    /** Number of peers (the skip list doesn't know its size in constant time) **/
+    private final AtomicInteger peerCount = new AtomicInteger();
+    private Tracer tracer;
+    private History history;
+    private ChatLog chatLog;
+    private long queueBudget = 1 << 20;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.COALESCE;
+    /** How long to wait for the sender thread to flush the queue before closing **/
+    private static final long SENDER_LINGER = 5000;
+    private int handshakeTimeout = 0;
+    private int idleTimeout = 0;
+    private boolean compression = true;
+    /** Closes the connections that don't finish the handshake in time **/
+    private final ScheduledThreadPoolExecutor handshakeTimer = new ScheduledThreadPoolExecutor(1, (runnable) -> {
+        Thread thread = new Thread(runnable, "handshake-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Statistics. Counters are updated from all connection threads, so
+     * they're {@link LongAdder}s to avoid contending on a single value.
+     */
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder broadcasts = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder connectionThreads = new LongAdder();
+    private final LongAdder senderThreads = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+    private final LongAdder handshakeTimeouts = new LongAdder();
+    private final LongAdder idleTimeouts = new LongAdder();
+    /** Per-second rates, updated by the sampler thread **/
+    private volatile double acceptRate, broadcastRate, bytesWrittenRate;
 
     public Server(int port) {
         try {
@@ -30,22 +132,145 @@ public class Server implements Runnable {
         } catch (IOException ex) {
             throw new RuntimeException("Couldn't bind to specified port");
         }
+        // (most handshakes finish in time, don't keep their tasks queued)
+        handshakeTimer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Also accept connections on a Unix domain socket at the passed path,
+     * for local clients. An existing file there is replaced (such as the
+     * socket of a server that crashed), and removed on exit.
+     */
+    public void setUnixSocket(Path path) {
+        try {
+            Files.deleteIfExists(path);
+            unixSocket = new MyServerSocket(path);
+            path.toFile().deleteOnExit();
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldn't bind to Unix socket", ex);
+        }
+    }
+
+    /**
+     * Set the maximum size (in bytes) of the messages waiting in the send
+     * queue of each peer. Defaults to 1MiB.
+     */
+    public void setQueueBudget(long queueBudget) {
+        this.queueBudget = queueBudget;
+    }
+
+    public long getQueueBudget() {
+        return queueBudget;
+    }
+
+    /** Set what to do when the queue budget is exceeded. Defaults to COALESCE. **/
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Set how long (in milliseconds) a connection may take to send its
+     * nickname before it's closed. Zero (the default) means forever, since
+     * interactive clients (like p2.Client) connect before asking the user.
+     */
+    public void setHandshakeTimeout(int handshakeTimeout) {
+        this.handshakeTimeout = handshakeTimeout;
+    }
+
+    /**
+     * Set how long (in milliseconds) a peer may go without sending anything
+     * before it's disconnected. Zero (the default) means forever. Note that
+     * clients don't send anything when their user isn't talking.
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Set whether peers may negotiate compression (see
+     * {@link Protocol#DEFLATE}). Enabled by default.
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Keep the passed number of messages, and replay them to peers when
+     * they join. Zero disables the history.
+     */
+    public void setHistoryDepth(int depth) {
+        this.history = (depth > 0) ? new History(depth) : null;
+    }
+
+    /**
+     * Append the chat messages to the passed log, and let framed clients
+     * request them (see {@link Protocol#LOG}). Null disables logging.
+     */
+    public void setChatLog(ChatLog chatLog) {
+        this.chatLog = chatLog;
+    }
+
+    /**
+     * Enable tracing of the time spent by messages in each stage, and dump
+     * the collected latencies to stderr with the passed interval.
+     */
+    public void setTracing(final int intervalSeconds) {
+        final Tracer tracer = this.tracer = new Tracer();
+        Thread dumper = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(intervalSeconds * 1000L);
+                        System.err.print("Trace (last " + intervalSeconds + "s):\n" + tracer.dump(true));
+                    }
+                } catch (InterruptedException ex) {
+                }
+            }
+        });
+        dumper.setDaemon(true);
+        dumper.start();
     }
 
     private void broadcast(String origin, Message msg) {
+        broadcasts.increment();
         for (Entry<String, Connection> e : peers.entrySet()) {
             if (!e.getKey().equals(origin)) {
-                e.getValue().sendQueue.add(msg);
+                e.getValue().send(msg.received != 0 ? traceEnqueue(msg) : msg);
             }
         }
     }
 
+    /** Make a copy of a traced message, stamped with the enqueue time **/
+    private Message traceEnqueue(Message msg) {
+        Message copy = msg.copy();
+        copy.received = msg.received;
+        copy.parsed = msg.parsed;
+        copy.enqueued = System.nanoTime();
+        tracer.record(Tracer.Stage.ENQUEUE, copy.enqueued - copy.parsed);
+        return copy;
+    }
+
     @Override
     public void run() {
+        if (unixSocket != null) {
+            Thread unixAcceptor = new Thread(() -> accept(unixSocket), "unix-acceptor");
+            unixAcceptor.setDaemon(true);
+            unixAcceptor.start();
+            System.out.println("Server listening (Unix socket).");
+        }
+        System.out.println("Server listening.");
+        accept(serverSocket);
+    }
+
+    private void accept(MyServerSocket serverSocket) {
         try {
-            System.out.println("Server listening.");
             while (true) {
-                final MySocket socket = this.serverSocket.accept();
+                final MySocket socket = serverSocket.accept();
+                accepted.increment();
                 final Connection connection = new Connection(socket);
                 new Thread(connection).start();
             }
@@ -57,36 +282,221 @@ public class Server implements Runnable {
     private class Connection implements Runnable {
 
         MySocket socket;
+        /** Whether the peer negotiated the framed protocol **/
+        boolean framed = false;
+        /**
+         * Sequence number of the last history message replayed on join. Those
+         * messages may also have been queued, and must be skipped.
+         */
+        long replayedSequence;
         LinkedBlockingQueue<Message> sendQueue = new LinkedBlockingQueue<>();
+        /** Size of the messages in the queue **/
+        final AtomicLong queuedBytes = new AtomicLong();
+        /** Set once EOF has been queued, no more messages are queued after it **/
+        boolean closed = false;
+        /** Set if a read timed out **/
+        boolean timedOut = false;
+        /** Set if the socket was closed for not finishing the handshake **/
+        volatile boolean expired = false;
 
         Connection(MySocket socket) {
             this.socket = socket;
         }
 
+        /**
+         * Queue a message to be sent, applying the overflow policy if it
+         * doesn't fit in the budget. Enqueuers synchronize on the connection,
+         * the sender thread only takes from the queue.
+         */
+        synchronized void send(Message msg) {
+            if (closed) return;
+            if (queuedBytes.get() + msg.size(framed) <= queueBudget) {
+                enqueue(msg);
+                return;
+            }
+            switch (overflowPolicy) {
+                case DROP:
+                    dropped.increment();
+                    break;
+                case COALESCE:
+                    int skipped = discardBacklog(coalesced);
+                    enqueue(notice(Protocol.info(skipped + " messages skipped"), skipped));
+                    if (queuedBytes.get() + msg.size(framed) <= queueBudget)
+                        enqueue(msg);
+                    else
+                        dropped.increment();
+                    break;
+                case DISCONNECT:
+                    discardBacklog(dropped);
+                    disconnected.increment();
+                    enqueue(notice(new Protocol.Encoded(
+                            Protocol.error("Disconnected for not reading fast enough", false),
+                            Protocol.error("Disconnected for not reading fast enough", true)), 0));
+                    close();
+                    // Make the connection thread see EOF and deregister the peer
+                    try {
+                        socket.shutdownInput();
+                    } catch (RuntimeException ex) {
+                    }
+                    break;
+            }
+        }
+
+        /**
+         * Handle a command from a framed client. Replies go through the send
+         * queue, to keep them in order with the broadcast events.
+         */
+        void command(String line) {
+            int i = line.indexOf(' ');
+            String name = (i == -1) ? line : line.substring(0, i);
+            String argument = (i == -1) ? null : line.substring(i + 1);
+            String reply;
+            if (name.equals(Protocol.NAMES) && argument != null) {
+                reply = Protocol.participants(Protocol.page(peers.navigableKeySet(), argument));
+            } else if (name.equals(Protocol.LOG) && argument != null) {
+                reply = replayLog(argument);
+            } else {
+                reply = Protocol.info("Unknown command " + name).framed;
+            }
+            // (only sent to this peer, so there's no need for a legacy encoding)
+            send(new Message(new Protocol.Encoded(reply, reply)));
+        }
+
+        /**
+         * Queue the logged messages in the requested range, and return the
+         * reply to send after them.
+         */
+        private String replayLog(String argument) {
+            if (chatLog == null)
+                return Protocol.info("No chat log").framed;
+            String[] range = argument.split(" ");
+            long from, to;
+            try {
+                from = ChatLog.parseTime(range[0]);
+                to = (range.length > 1) ? ChatLog.parseTime(range[1]) : Long.MAX_VALUE;
+            } catch (RuntimeException ex) {
+                return Protocol.info("Invalid time range").framed;
+            }
+            Message msg = new Message(new Protocol.Encoded("", ""));
+            msg.log = chatLog.regions(from, to);
+            send(msg);
+            return Protocol.info(Protocol.END_OF_LOG).framed;
+        }
+
+        /** Queue EOF, so the sender thread ends after flushing the queue **/
+        synchronized void close() {
+            if (closed) return;
+            closed = true;
+            sendQueue.add(new Message(null));
+        }
+
+        private void enqueue(Message msg) {
+            queuedBytes.addAndGet(msg.size(framed));
+            sendQueue.add(msg);
+        }
+
+        /** Read a line, treating a timeout like EOF (and counting it) **/
+        private String readLine(LongAdder timeouts) {
+            try {
+                return socket.readLine();
+            } catch (RuntimeException ex) {
+                if (!(ex.getCause() instanceof SocketTimeoutException))
+                    throw ex;
+                timeouts.increment();
+                timedOut = true;
+                return null;
+            }
+        }
+
+        private Message notice(Protocol.Encoded data, int skipped) {
+            Message msg = new Message(data);
+            msg.skipped = skipped;
+            return msg;
+        }
+
+        /**
+         * Remove the queued messages, counting them in the passed counter.
+         * Returns how many messages were skipped, including the ones
+         * represented by discarded overflow notices.
+         */
+        private int discardBacklog(LongAdder counter) {
+            int skipped = 0;
+            Message msg;
+            while ((msg = sendQueue.poll()) != null) {
+                queuedBytes.addAndGet(-msg.size(framed));
+                msg.release();
+                if (msg.skipped > 0) {
+                    skipped += msg.skipped;
+                } else {
+                    skipped++;
+                    counter.increment();
+                }
+            }
+            return skipped;
+        }
+
         @Override
         public void run() {
+            connectionThreads.increment();
             try {
-                socket.setKeepAlive(true);
+                // (local peers can't vanish without their socket being closed)
+                if (!socket.isUnixDomain())
+                    socket.setKeepAlive(true);
 
-                // Read nickname from client
+                // Read protocol version (optional) and nickname from client.
+                // The whole handshake must fit in the timeout: a read timeout
+                // restarts on every byte, so a slow peer could hold on forever.
+                ScheduledFuture<?> deadline = (handshakeTimeout <= 0) ? null : handshakeTimer.schedule(() -> {
+                    expired = true;
+                    handshakeTimeouts.increment();
+                    socket.close();
+                }, handshakeTimeout, TimeUnit.MILLISECONDS);
                 String nick = socket.readLine();
+                if (Protocol.isHello(nick)) {
+                    boolean deflate = compression && Protocol.helloOptions(nick).contains(Protocol.DEFLATE);
+                    framed = true;
+                    socket.print(Protocol.hello(deflate));
+                    if (deflate)
+                        socket.enableCompression();
+                    nick = socket.readLine();
+                }
+                // (if the timer already ran, the socket is closed)
+                if (deadline != null && !deadline.cancel(false))
+                    return;
                 if (nick == null)
                     return;
-                if (!nick.matches("^[a-zA-Z0-9 _.@-]+$")) {
-                    socket.print("Error: Invalid characters in nickname\n");
+                if (!Protocol.isValidNick(nick)) {
+                    socket.print(Protocol.error("Invalid characters in nickname", framed));
                     return;
                 }
 
                 // Register peer
                 if (peers.putIfAbsent(nick, this) != null) {
-                    socket.print("Error: Nickname '" + nick + "' already in use\n");
+                    socket.print(Protocol.error("Nickname '" + nick + "' already in use", framed));
                     return;
                 }
-                broadcast(nick, new Message("[" + nick + " joined the room]\n"));
+                peerCount.incrementAndGet();
+                broadcast(nick, new Message(Protocol.joined(nick)));
+
+                // Send participants (FIXME: not atomic). Framed clients get
+                // the count and the first page, and can request the rest.
+                if (framed) {
+                    socket.print(Protocol.participantCount(peerCount.get()));
+                    socket.print(Protocol.participants(Protocol.page(peers.navigableKeySet(), null)));
+                } else {
+                    Protocol.writeLegacyParticipants(peers.keySet(), socket::print);
+                }
 
-                // Send participants (FIXME: not atomic)
-                String participants = String.join(", ", peers.keySet());
-                socket.print("[current participants: " + participants + "]\n");
+                // Replay history
+                if (history != null) {
+                    byte[] replay;
+                    synchronized (history) {
+                        replay = history.toByteArray(framed);
+                        replayedSequence = history.getLastSequence();
+                    }
+                    if (replay.length > 0)
+                        socket.write(replay);
+                }
 
                 // Start sender thread
                 Thread sender = new Thread(new Runnable() {
@@ -96,43 +506,217 @@ public class Server implements Runnable {
                 });
                 sender.start();
 
-                // Main loop until EOF
+                // Main loop until EOF (or idle timeout)
+                socket.setSoTimeout(idleTimeout);
                 String line;
-                while ((line = socket.readLine()) != null) {
-                    broadcast(nick, new Message(nick + ": " + line + "\n"));
+                while ((line = readLine(idleTimeouts)) != null) {
+                    if (framed && Protocol.isCommand(line)) {
+                        command(line);
+                        continue;
+                    }
+                    if (framed)
+                        line = Protocol.unescape(line);
+                    long received = (tracer != null) ? System.nanoTime() : 0;
+                    Message msg = new Message(Protocol.message(nick, line));
+                    // (added before broadcasting, so joining peers don't miss it)
+                    if (history != null)
+                        msg.sequence = history.add(msg.legacy, msg.framed);
+                    if (chatLog != null)
+                        chatLog.append(System.currentTimeMillis(), msg.framed);
+                    if (tracer != null) {
+                        msg.received = received;
+                        msg.parsed = System.nanoTime();
+                        tracer.record(Tracer.Stage.PARSE, msg.parsed - msg.received);
+                    }
+                    broadcast(nick, msg);
                 }
 
+                if (timedOut)
+                    send(notice(new Protocol.Encoded(
+                            Protocol.error("Disconnected for being idle", false),
+                            Protocol.error("Disconnected for being idle", true)), 0));
+
                 // Deregister peer
                 peers.remove(nick);
-                broadcast(nick, new Message("[" + nick + " left the room]\n"));
+                peerCount.decrementAndGet();
+                broadcast(nick, new Message(Protocol.left(nick)));
 
-                // Send EOF to sender, and wait for it to end
-                sendQueue.add(new Message(null));
-                sender.join();
+                // Send EOF to sender, and wait for it to flush the queue
+                // (a stalled peer could block it forever, so don't wait too long)
+                close();
+                sender.join(SENDER_LINGER);
             } catch (RuntimeException | InterruptedException ex) {
-                Logger.getLogger(Server.class.getName()).log(Level.SEVERE,
-                        "Unexpected exception at connection thread", ex);
+                // (closing the socket under the handshake fails it, that's expected)
+                if (!expired)
+                    Logger.getLogger(Server.class.getName()).log(Level.SEVERE,
+                            "Unexpected exception at connection thread", ex);
             } finally {
                 socket.close();
+                connectionThreads.decrement();
             }
         }
 
         void sendThread() {
+            senderThreads.increment();
             try {
                 Message msg;
-                while ((msg = sendQueue.take()).data != null) {
-                    socket.print(msg.data);
+                while ((msg = sendQueue.take()).legacy != null) {
+                    int size = msg.size(framed);
+                    queuedBytes.addAndGet(-size);
+                    if (msg.sequence != 0 && msg.sequence <= replayedSequence)
+                        continue;
+                    if (msg.log != null) {
+                        try {
+                            for (ChatLog.Region region : msg.log) {
+                                socket.write(region.channel, region.position, region.count);
+                                bytesWritten.add(region.count);
+                            }
+                        } finally {
+                            msg.release();
+                        }
+                        continue;
+                    }
+                    long dequeued = (msg.received != 0) ? System.nanoTime() : 0;
+                    socket.write(msg.get(framed));
+                    bytesWritten.add(size);
+                    if (msg.received != 0) {
+                        long written = System.nanoTime();
+                        tracer.record(Tracer.Stage.HANDOFF, dequeued - msg.enqueued);
+                        tracer.record(Tracer.Stage.WRITE, written - dequeued);
+                        tracer.record(Tracer.Stage.TOTAL, written - msg.received);
+                    }
                 }
             } catch (RuntimeException | InterruptedException ex) {
                 Logger.getLogger(Server.class.getName()).log(Level.SEVERE,
                         "Unexpected exception at connection sendThread", ex);
+            } finally {
+                for (Message msg : sendQueue)
+                    msg.release();
+                senderThreads.decrement();
             }
         }
 
     }
 
+    // STATISTICS
+
+    /** Send queue depth of each peer, sorted by nickname **/
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> result = new TreeMap<>();
+        for (Entry<String, Connection> e : peers.entrySet())
+            result.put(e.getKey(), e.getValue().sendQueue.size());
+        return result;
+    }
+
+    public int getTotalQueueDepth() {
+        int total = 0;
+        for (Connection connection : peers.values())
+            total += connection.sendQueue.size();
+        return total;
+    }
+
+    public long getTotalQueuedBytes() {
+        long total = 0;
+        for (Connection connection : peers.values())
+            total += connection.queuedBytes.get();
+        return total;
+    }
+
+    /** Plain-text report of the statistics and each peer's queue depth **/
+    public String getSnapshot() {
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("connections: %d (%d accepted, %.1f/s)%n",
+                peerCount.get(), accepted.sum(), acceptRate));
+        result.append(String.format("threads: %d connection, %d sender%n",
+                connectionThreads.sum(), senderThreads.sum()));
+        result.append(String.format("broadcast: %d messages (%.1f/s)%n", broadcasts.sum(), broadcastRate));
+        result.append(String.format("written: %d bytes (%.0f/s)%n", bytesWritten.sum(), bytesWrittenRate));
+        result.append(String.format("queued: %d messages, %d bytes (budget %d per peer, %s)%n",
+                getTotalQueueDepth(), getTotalQueuedBytes(), queueBudget, overflowPolicy));
+        result.append(String.format("overflows: %d dropped, %d coalesced, %d disconnected%n",
+                dropped.sum(), coalesced.sum(), disconnected.sum()));
+        result.append(String.format("timeouts: %d handshake, %d idle%n",
+                handshakeTimeouts.sum(), idleTimeouts.sum()));
+        for (Entry<String, Integer> e : getQueueDepths().entrySet())
+            result.append("  ").append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+        return result.toString();
+    }
+
+    /**
+     * Start a thread to compute the rates every second, and register a
+     * {@link ServerMXBean} with the passed name in the platform MBean server.
+     */
+    public void registerMBean(String name) {
+        Thread sampler = new Thread(new Runnable() {
+            public void run() {
+                long lastAccepted = 0, lastBroadcasts = 0, lastBytes = 0;
+                long last = System.nanoTime();
+                try {
+                    while (true) {
+                        Thread.sleep(1000);
+                        long now = System.nanoTime(), a = accepted.sum(), b = broadcasts.sum(), w = bytesWritten.sum();
+                        double elapsed = (now - last) / 1e9;
+                        acceptRate = (a - lastAccepted) / elapsed;
+                        broadcastRate = (b - lastBroadcasts) / elapsed;
+                        bytesWrittenRate = (w - lastBytes) / elapsed;
+                        lastAccepted = a; lastBroadcasts = b; lastBytes = w; last = now;
+                    }
+                } catch (InterruptedException ex) {
+                }
+            }
+        });
+        sampler.setDaemon(true);
+        sampler.start();
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new ServerMXBean() {
+                public int getConnections() { return peerCount.get(); }
+                public long getAccepted() { return accepted.sum(); }
+                public double getAcceptRate() { return acceptRate; }
+                public long getBroadcasts() { return broadcasts.sum(); }
+                public double getBroadcastRate() { return broadcastRate; }
+                public long getBytesWritten() { return bytesWritten.sum(); }
+                public double getBytesWrittenRate() { return bytesWrittenRate; }
+                public int getTotalQueueDepth() { return Server.this.getTotalQueueDepth(); }
+                public Map<String, Integer> getQueueDepths() { return Server.this.getQueueDepths(); }
+                public long getTotalQueuedBytes() { return Server.this.getTotalQueuedBytes(); }
+                public long getDropped() { return dropped.sum(); }
+                public long getCoalesced() { return coalesced.sum(); }
+                public long getDisconnected() { return disconnected.sum(); }
+                public long getHandshakeTimeouts() { return handshakeTimeouts.sum(); }
+                public long getIdleTimeouts() { return idleTimeouts.sum(); }
+                public int getConnectionThreads() { return connectionThreads.intValue(); }
+                public int getSenderThreads() { return senderThreads.intValue(); }
+                public String getSnapshot() { return Server.this.getSnapshot(); }
+            }, new ObjectName(name));
+        } catch (Exception ex) {
+            throw new RuntimeException("Couldn't register MBean", ex);
+        }
+    }
+
     public static void main(String[] args) {
         Server server = new Server(3500);
+        server.registerMBean("p2:type=Server");
+        server.setQueueBudget(Long.getLong("chat.queue.budget", server.getQueueBudget()));
+        server.setHistoryDepth(Integer.getInteger("chat.history", 0));
+        server.setHandshakeTimeout(Integer.getInteger("chat.timeout.handshake", 0));
+        server.setIdleTimeout(Integer.getInteger("chat.timeout.idle", 0));
+        String log = System.getProperty("chat.log");
+        if (log != null) {
+            ChatLog chatLog = new ChatLog(Paths.get(log));
+            chatLog.setCommitInterval(Long.getLong("chat.log.commit", 1000));
+            server.setChatLog(chatLog);
+        }
+        String unix = System.getProperty("chat.unix");
+        if (unix != null)
+            server.setUnixSocket(Paths.get(unix));
+        String policy = System.getProperty("chat.queue.policy");
+        if (policy != null)
+            server.setOverflowPolicy(OverflowPolicy.valueOf(policy.toUpperCase()));
+        server.setCompression(Boolean.parseBoolean(System.getProperty("chat.deflate.allow", "true")));
+        int traceInterval = Integer.getInteger("chat.trace", 0);
+        if (traceInterval > 0)
+            server.setTracing(traceInterval);
         server.run();
     }
 
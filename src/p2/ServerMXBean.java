@@ -0,0 +1,64 @@
+package p2;
+
+import java.util.Map;
+
+/**
+ * Management interface of the chat {@link Server}. Rates are per second,
+ * measured over the last second.
+ *
+ * @author Alba Mendez
+ */
+public interface ServerMXBean {
+
+    /** Peers in the room **/
+    int getConnections();
+
+    /** Connections accepted since the server started **/
+    long getAccepted();
+
+    double getAcceptRate();
+
+    /** Messages broadcast since the server started (including join / leave notices) **/
+    long getBroadcasts();
+
+    double getBroadcastRate();
+
+    /** Bytes of broadcast messages written to peers since the server started **/
+    long getBytesWritten();
+
+    double getBytesWrittenRate();
+
+    /** Messages waiting in the send queues of all peers **/
+    int getTotalQueueDepth();
+
+    /** Messages waiting in the send queue of each peer **/
+    Map<String, Integer> getQueueDepths();
+
+    /** Size of the messages waiting in the send queues of all peers **/
+    long getTotalQueuedBytes();
+
+    /** Messages dropped because they didn't fit in a send queue **/
+    long getDropped();
+
+    /** Messages skipped when coalescing the backlog of a send queue **/
+    long getCoalesced();
+
+    /** Peers disconnected because their send queue overflowed **/
+    long getDisconnected();
+
+    /** Connections closed for not sending a nickname in time **/
+    long getHandshakeTimeouts();
+
+    /** Peers disconnected for being idle **/
+    long getIdleTimeouts();
+
+    /** Live connection (reader) threads **/
+    int getConnectionThreads();
+
+    /** Live sender threads **/
+    int getSenderThreads();
+
+    /** Plain-text report of all of the above **/
+    String getSnapshot();
+
+}
@@ -0,0 +1,87 @@
+package p2;
+
+/**
+ * Records the latency of each stage a chat message goes through, from the
+ * moment its line is read to the moment it has been written to each peer,
+ * into histograms that can be dumped periodically.
+ *
+ * Servers with many threads (like the p2 server, which has two threads per
+ * connection) would need too much memory for a set of histograms per
+ * thread, so recording threads are spread over a fixed number of stripes
+ * instead, each with its own set. Threads only contend when they share a
+ * stripe.
+ *
+ * @author Alba Mendez
+ */
+public class Tracer {
+
+    public static enum Stage {
+        /** From reading the line to building the message to broadcast **/
+        PARSE("read -> parse"),
+        /** From building the message to handing it to a peer's send queue **/
+        ENQUEUE("parse -> enqueue"),
+        /** From the send queue to the thread that writes to the socket **/
+        HANDOFF("enqueue -> dequeue"),
+        /**
+         * From the writer thread picking up the message, to having it written.
+         * Servers without writer threads (p3) don't record HANDOFF, and record
+         * the time since the message was enqueued here instead.
+         */
+        WRITE("dequeue -> written"),
+        /** The whole path, from reading the line to having it written **/
+        TOTAL("read -> written");
+
+        final String description;
+
+        Stage(String description) {
+            this.description = description;
+        }
+    }
+
+    private final Histogram[][] stripes;
+
+    public Tracer() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    public Tracer(int stripeCount) {
+        stripes = new Histogram[stripeCount][Stage.values().length];
+        for (Histogram[] stripe : stripes)
+            for (int i = 0; i < stripe.length; i++)
+                stripe[i] = new Histogram();
+    }
+
+    /** Record the time spent on a stage, in nanoseconds **/
+    public void record(Stage stage, long nanos) {
+        Histogram[] stripe = stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+        synchronized (stripe) {
+            stripe[stage.ordinal()].record(nanos);
+        }
+    }
+
+    /**
+     * Merge the histograms of all stripes into a textual report, one line
+     * per stage, and optionally reset them.
+     */
+    public String dump(boolean reset) {
+        Histogram[] merged = new Histogram[Stage.values().length];
+        for (int i = 0; i < merged.length; i++)
+            merged[i] = new Histogram();
+        for (Histogram[] stripe : stripes) {
+            synchronized (stripe) {
+                for (int i = 0; i < stripe.length; i++) {
+                    merged[i].add(stripe[i]);
+                    if (reset) stripe[i].reset();
+                }
+            }
+        }
+        StringBuilder result = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            if (merged[stage.ordinal()].getCount() == 0) continue;
+            result.append(String.format("  %-20s %s%n", stage.description,
+                    merged[stage.ordinal()].durationSummary()));
+        }
+        return result.toString();
+    }
+
+}
@@ -0,0 +1,128 @@
+package p2;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Access to Unix domain sockets, which are faster than TCP for local
+ * clients (bots, bridges) as they skip the network stack. They need
+ * Java 16; the classes are looked up at runtime so the rest of the code
+ * still runs on older versions, where {@link #isSupported} is false.
+ *
+ * @author Alba Mendez
+ */
+public final class UnixSockets {
+
+    private static final ProtocolFamily UNIX;
+    private static final Method ADDRESS_OF, OPEN, OPEN_SERVER;
+
+    static {
+        ProtocolFamily family = null;
+        Method addressOf = null, open = null, openServer = null;
+        try {
+            family = StandardProtocolFamily.valueOf("UNIX");
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class);
+            open = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            openServer = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+        } catch (IllegalArgumentException | ReflectiveOperationException ex) {
+            family = null;
+        }
+        UNIX = family;
+        ADDRESS_OF = addressOf;
+        OPEN = open;
+        OPEN_SERVER = openServer;
+    }
+
+    private UnixSockets() {}
+
+    /** Whether the runtime supports Unix domain sockets **/
+    public static boolean isSupported() {
+        return UNIX != null;
+    }
+
+    /** Address of the socket at the passed path **/
+    public static SocketAddress address(Path path) {
+        try {
+            return (SocketAddress) invoke(ADDRESS_OF, path);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /** Whether the address is of a Unix domain socket **/
+    public static boolean isUnix(SocketAddress address) {
+        return address != null && address.getClass().getName().equals("java.net.UnixDomainSocketAddress");
+    }
+
+    /**
+     * Whether the channel is a Unix domain one (the family of a channel
+     * isn't exposed, but only IP channels have IP options).
+     */
+    public static boolean isUnix(NetworkChannel channel) {
+        return !channel.supportedOptions().contains(StandardSocketOptions.IP_TOS);
+    }
+
+    /** Open an unconnected Unix domain socket channel **/
+    public static SocketChannel open() throws IOException {
+        return (SocketChannel) invoke(OPEN, UNIX);
+    }
+
+    /** Open an unbound Unix domain server socket channel **/
+    public static ServerSocketChannel openServer() throws IOException {
+        return (ServerSocketChannel) invoke(OPEN_SERVER, UNIX);
+    }
+
+    /** Open a Unix domain socket channel connected to the passed path **/
+    public static SocketChannel connect(Path path) throws IOException {
+        SocketChannel channel = open();
+        try {
+            channel.connect(address(path));
+            return channel;
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /** Open a Unix domain server socket channel bound to the passed path **/
+    public static ServerSocketChannel bind(Path path) throws IOException {
+        ServerSocketChannel channel = openServer();
+        try {
+            channel.bind(address(path));
+            return channel;
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /** Call a static method, passing its exceptions through **/
+    private static Object invoke(Method method, Object argument) throws IOException {
+        if (!isSupported())
+            throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later");
+        try {
+            return method.invoke(null, argument);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        } catch (InvocationTargetException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+}
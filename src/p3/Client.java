@@ -4,12 +4,23 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.IOException;
 import java.text.DecimalFormat;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.*;
 import javax.swing.text.*;
-import javax.swing.text.html.HTMLDocument;
 import p2.MySocket;
+import p2.Protocol;
+import p3.MessageHistory.Entry;
 
 /**
  * Graphical chat client.
@@ -17,7 +28,21 @@ import p2.MySocket;
  */
 public class Client {
 
+    /** Default number of messages kept in the scrollback **/
+    public static final int DEFAULT_SCROLLBACK = 5000;
+
+    private final int scrollback;
+
     public Client() {
+        this(DEFAULT_SCROLLBACK);
+    }
+
+    /**
+     * @param scrollback Maximum number of messages to keep, older messages
+     *                   are discarded.
+     */
+    public Client(int scrollback) {
+        this.scrollback = scrollback;
         initUI();
     }
 
@@ -43,9 +68,10 @@ public class Client {
     private JButton connectButton;
 
     private JList<String> usersList;
-    private DefaultListModel<String> usersListModel;
+    private ParticipantList usersListModel;
     private JTextField messageField;
-    private JEditorPane messagesPane;
+    private JList<Entry> messagesList;
+    private MessageHistory messages;
     private boolean scrollToBottom;
 
     private void initUI() {
@@ -119,8 +145,10 @@ public class Client {
         usersPanel.setPreferredSize(new Dimension(100, 100));
 
         usersList = new JList<>();
-        usersListModel = new DefaultListModel<>();
+        usersListModel = new ParticipantList();
         usersList.setModel(usersListModel);
+        // Fixed cell size, so that big rooms don't need to measure every cell
+        usersList.setPrototypeCellValue("mmmmmmmmmm");
 
         JScrollPane usersScrollPane = new JScrollPane();
         usersScrollPane.setViewportView(usersList);
@@ -138,12 +166,14 @@ public class Client {
         messagePanel.setMinimumSize(new Dimension(200, 200));
         messagePanel.setPreferredSize(new Dimension(400, 400));
 
-        messagesPane = new JEditorPane();
-        messagesPane.setEditable(false);
-        messagesPane.setContentType("text/html");
+        // Messages are wrapped, so rows have variable height
+        messages = new MessageHistory(scrollback);
+        messagesList = new JList<>(messages);
+        MessageRenderer.install(messagesList);
 
         JScrollPane messagesScrollPane = new JScrollPane();
-        messagesScrollPane.setViewportView(messagesPane);
+        messagesScrollPane.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+        messagesScrollPane.setViewportView(messagesList);
         final JScrollBar vsb = messagesScrollPane.getVerticalScrollBar();
         vsb.addAdjustmentListener(new AdjustmentListener() {
             int value = vsb.getValue();
@@ -293,38 +323,188 @@ public class Client {
         disconnectMenuItem.setEnabled(isActive());
     }
 
-    private HTMLDocument messagesDoc;
-    private Element messagesElem;
-
     private void appendMessage(String nick, String content) {
-        StringBuilder bf = new StringBuilder();
-        bf.append("<div class=\"box\">");
-        bf.append("<span class=\"user\">").append(escapeHTML(nick)).append("</span> ");
-        bf.append("<span class=\"message\">").append(escapeHTML(content)).append("</span></div>");
-        try {
-            messagesDoc.insertBeforeEnd(messagesElem, bf.toString());
-        } catch (BadLocationException | IOException ex) {
-            throw new RuntimeException(ex);
-        }
-    }
-
-    private void appendNotification(String content) {
-        StringBuilder bf = new StringBuilder();
-        bf.append("<div class=\"notification\">").append(escapeHTML(content)).append("</div>");
-        try {
-            messagesDoc.insertBeforeEnd(messagesElem, bf.toString());
-        } catch (BadLocationException | IOException ex) {
-            throw new RuntimeException(ex);
-        }
+        messages.add(new Entry(nick, content));
     }
 
     private void resetMessages() {
-        messagesPane.setText("<html>\n  <head>\n<style type=\"text/css\">\n\nbody {\n  font-name: Roboto, 'Open Sans', Ubuntu, sans-serif;\n  font-size: 12px;\n  background-color: #ffffff;\n  color: #000000;\n  padding: 1px 3px;\n}\n.box {\n  padding-top: 1px;\n  padding-bottom: 1px;\n}\n.box .user {\n  font-weight: bold;\n  font-size: 10px;\n}\n.notification {\n  font-weight: normal;\n  text-align: center;\n  color: #555555;\n  font-size: 10px;\n  padding-top: 2px;\n  padding-bottom: 2px;\n}\n\n\n</style>\n  </head>\n  <body><div id=\"messages\">" + "<div class=\"notification\">You have joined the room</div></div>\n  </body>\n</html>\n");
-        messagesDoc = (HTMLDocument) messagesPane.getDocument();
-        messagesElem = messagesDoc.getElement("messages");
+        messages.clear();
+        messages.add(new Entry(null, "You have joined the room"));
         scrollToBottom = true;
     }
 
+    /**
+     * Renders a chat message (or a centered notification), painting the
+     * text directly instead of going through HTML. Text is wrapped at
+     * spaces to the width of the list, so rows have variable height; the
+     * number of lines of each entry is cached, so that the list can measure
+     * every row when the history changes without wrapping them again.
+     * Use {@link #install} to set it on a list.
+     */
+    static class MessageRenderer extends JComponent implements ListCellRenderer<Entry> {
+
+        private static final long serialVersionUID = 1L;
+        private static final int PADDING = 2;
+        /** Indentation of the lines after the first one **/
+        private static final int INDENT = 12;
+        private static final Color NOTIFICATION_COLOR = new Color(0x555555);
+
+        private final Font messageFont, nickFont, notificationFont;
+        /** Width and line count of each entry, the last time it was wrapped **/
+        private final Map<Entry, int[]> lineCounts = new WeakHashMap<>();
+        private Entry entry;
+        /** Width to wrap the current entry at, or 0 to not wrap it **/
+        private int wrapWidth;
+
+        MessageRenderer(Font base) {
+            messageFont = base.deriveFont(Font.PLAIN, 12f);
+            nickFont = base.deriveFont(Font.BOLD, 10f);
+            notificationFont = base.deriveFont(Font.PLAIN, 10f);
+            setOpaque(true);
+        }
+
+        /**
+         * Set a new renderer on the list, and make the list measure its
+         * rows again when its width changes.
+         */
+        static MessageRenderer install(final JList<Entry> list) {
+            MessageRenderer renderer = new MessageRenderer(list.getFont());
+            list.setCellRenderer(renderer);
+            list.addComponentListener(new ComponentAdapter() {
+                int width = list.getWidth();
+                public void componentResized(ComponentEvent e) {
+                    if (list.getWidth() == width) return;
+                    width = list.getWidth();
+                    // (the list only measures rows again when this changes)
+                    list.setFixedCellHeight(0);
+                    list.setFixedCellHeight(-1);
+                }
+            });
+            return renderer;
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<? extends Entry> list, Entry value,
+                int index, boolean isSelected, boolean cellHasFocus) {
+            entry = value;
+            wrapWidth = Math.max(list.getWidth() - 2 * PADDING, 0);
+            setBackground(isSelected ? list.getSelectionBackground() : list.getBackground());
+            setForeground(isSelected ? list.getSelectionForeground() : list.getForeground());
+            return this;
+        }
+
+        private int lineHeight() {
+            return Math.max(getFontMetrics(messageFont).getHeight(), getFontMetrics(nickFont).getHeight());
+        }
+
+        /** Rows take the width of the list, so only the height is given **/
+        @Override
+        public Dimension getPreferredSize() {
+            int lines = 1;
+            if (entry != null && wrapWidth > 0) {
+                int[] cached = lineCounts.get(entry);
+                if (cached == null || cached[0] != wrapWidth) {
+                    cached = new int[] { wrapWidth, layout(wrapWidth).size() };
+                    lineCounts.put(entry, cached);
+                }
+                lines = cached[1];
+            }
+            return new Dimension(0, lines * lineHeight() + 2 * PADDING);
+        }
+
+        /** Lines of the current entry, wrapped to the passed width **/
+        private List<String> layout(int width) {
+            if (entry.isNotification())
+                return wrap(entry.content, getFontMetrics(notificationFont), width, width);
+            FontMetrics nfm = getFontMetrics(nickFont);
+            int first = width - nfm.stringWidth(truncate(entry.nick, nfm, width)) - nfm.charWidth(' ');
+            return wrap(entry.content, getFontMetrics(messageFont), first, width - INDENT);
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            g.setColor(getBackground());
+            g.fillRect(0, 0, getWidth(), getHeight());
+            if (entry == null) return;
+            ((Graphics2D) g).setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                    RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            FontMetrics mfm = g.getFontMetrics(messageFont);
+            int baseline = PADDING + mfm.getAscent();
+            int width = getWidth() - 2 * PADDING;
+            int lineHeight = lineHeight();
+            List<String> lines = layout(width);
+
+            if (entry.isNotification()) {
+                g.setFont(notificationFont);
+                g.setColor(NOTIFICATION_COLOR);
+                FontMetrics fm = g.getFontMetrics();
+                for (String line : lines) {
+                    g.drawString(line, PADDING + (width - fm.stringWidth(line)) / 2, baseline);
+                    baseline += lineHeight;
+                }
+                return;
+            }
+
+            g.setColor(getForeground());
+            g.setFont(nickFont);
+            FontMetrics nfm = g.getFontMetrics();
+            String nick = truncate(entry.nick, nfm, width);
+            g.drawString(nick, PADDING, baseline);
+            int x = PADDING + nfm.stringWidth(nick) + nfm.charWidth(' ');
+            g.setFont(messageFont);
+            for (String line : lines) {
+                g.drawString(line, x, baseline);
+                baseline += lineHeight;
+                x = PADDING + INDENT;
+            }
+        }
+
+        /**
+         * Break text at spaces into lines that fit in the passed widths (of
+         * the first line, and the rest). Words that don't fit in a line are
+         * broken anywhere.
+         */
+        static List<String> wrap(String text, FontMetrics fm, int firstWidth, int width) {
+            List<String> lines = new ArrayList<>();
+            int start = 0;
+            while (true) {
+                int available = lines.isEmpty() ? firstWidth : width;
+                int end = start, used = 0;
+                while (end < text.length() && used + fm.charWidth(text.charAt(end)) <= available)
+                    used += fm.charWidth(text.charAt(end++));
+                if (end == text.length()) {
+                    lines.add(text.substring(start));
+                    return lines;
+                }
+                int space = text.lastIndexOf(' ', end);
+                if (space > start) {
+                    lines.add(text.substring(start, space));
+                    start = space + 1;
+                } else if (end > start) {
+                    lines.add(text.substring(start, end));
+                    start = end;
+                } else if (lines.isEmpty() && firstWidth < width) {
+                    lines.add(""); // (no room after the nick)
+                } else {
+                    lines.add(text.substring(start, start + 1));
+                    start++;
+                }
+            }
+        }
+
+        /** Cut a string so it fits in the passed width, adding an ellipsis **/
+        private static String truncate(String text, FontMetrics fm, int width) {
+            if (fm.stringWidth(text) <= width)
+                return text;
+            int available = width - fm.stringWidth("\u2026");
+            int end = 0, used = 0;
+            while (end < text.length() && used + fm.charWidth(text.charAt(end)) <= available)
+                used += fm.charWidth(text.charAt(end++));
+            return text.substring(0, end) + "\u2026";
+        }
+
+    }
+
     public void start() {
         frame.setVisible(true);
         nicknameField.requestFocus();
@@ -366,7 +546,12 @@ public class Client {
     private void disconnect() {
         if (socket != null) {
             // FIXME: handle case where socket isn't connected yet
-            socket.shutdownOutput();
+            final MySocket _socket = socket;
+            sender.execute(new Runnable() {
+                public void run() {
+                    _socket.shutdownOutput();
+                }
+            });
             ((CardLayout)(mainPanel.getLayout())).show(mainPanel, CARD_CONNECT);
         }
     }
@@ -374,7 +559,7 @@ public class Client {
     private void sendMessage() {
         String line = messageField.getText();
         if (line.trim().length() > 0) {
-            socket.print(line + "\n");
+            send((framed ? Protocol.escape(line) : line) + "\n");
             scrollToBottom = true;
             appendMessage(nick, line);
         }
@@ -383,34 +568,101 @@ public class Client {
 
     // NETWORK CALLBACKS
 
-    private void connected(String[] participants) {
+    private void connected(List<String> participants) {
         renderStatus();
 
         // Prepare users pane
-        usersListModel.clear();
-        for (String p : participants)
-            usersListModel.addElement(p);
+        usersListModel.set(participants);
         // Show card
         resetMessages();
         ((CardLayout)(mainPanel.getLayout())).show(mainPanel, CARD_CHAT);
         messageField.requestFocus();
     }
 
-    private void receivedMessage(String line) {
-        Matcher m;
-        if ((m = PATTERN_JOINED.matcher(line)).matches()) {
-            usersListModel.addElement(m.group(1));
-            appendNotification(m.group(1) + " has joined the room");
-        } else if ((m = PATTERN_LEFT.matcher(line)).matches()) {
-            usersListModel.removeElement(m.group(1));
-            appendNotification(m.group(1) + " has left the room");
-        } else {
-            String[] parts = line.split(": ", 2);
-            appendMessage(parts[0], parts[1]);
+    /** Maximum lines to process in a single EDT task, to keep the UI responsive **/
+    private static final int MAX_BATCH = 500;
+
+    /**
+     * Process the lines queued by the network thread. All messages in the
+     * batch are added to the history at once, so the list is only updated
+     * (and scrolled) once per batch.
+     */
+    private void receivedMessages() {
+        drainScheduled.set(false);
+        BatchHandler handler = new BatchHandler();
+        String line;
+        for (int count = 0; count < MAX_BATCH && (line = incoming.poll()) != null; count++)
+            Protocol.decode(line, framed, handler);
+        messages.addAll(handler.batch);
+        applyParticipantChanges();
+        if (!incoming.isEmpty())
+            scheduleDrain();
+    }
+
+    /**
+     * Joins (true) and leaves (false) seen in the current batch, by nickname.
+     * Only the last one counts, so they're applied as a single update.
+     */
+    private final Map<String, Boolean> participantChanges = new LinkedHashMap<>();
+
+    /** Turns the received events into history entries and participant changes **/
+    private class BatchHandler implements Protocol.Handler {
+        final List<Entry> batch = new ArrayList<>();
+
+        public void joined(String nick) {
+            participantChanges.put(nick, true);
+            batch.add(new Entry(null, nick + " has joined the room"));
+        }
+
+        public void left(String nick) {
+            participantChanges.put(nick, false);
+            batch.add(new Entry(null, nick + " has left the room"));
+        }
+
+        public void message(String nick, String text) {
+            batch.add(new Entry(nick, text));
+        }
+
+        public void participantCount(int count) {
+            participantChanges.clear();
+            usersListModel.clear();
+        }
+
+        /** Add a page of the listing, and request the next one **/
+        public void participants(List<String> nicks) {
+            applyParticipantChanges();
+            usersListModel.update(nicks, Collections.<String>emptyList());
+            if (framed && !nicks.isEmpty())
+                send(Protocol.namesRequest(nicks.get(nicks.size() - 1)));
+        }
+
+        public void info(String text) {
+            batch.add(new Entry(null, text));
+        }
+
+        public void error(String text) {
+            batch.add(new Entry(null, "Error: " + text));
         }
     }
 
+    private void applyParticipantChanges() {
+        if (participantChanges.isEmpty()) return;
+        List<String> added = new ArrayList<>(), removed = new ArrayList<>();
+        for (Map.Entry<String, Boolean> change : participantChanges.entrySet()) {
+            boolean present = usersListModel.contains(change.getKey());
+            if (change.getValue() && !present)
+                added.add(change.getKey());
+            else if (!change.getValue() && present)
+                removed.add(change.getKey());
+        }
+        participantChanges.clear();
+        usersListModel.update(added, removed);
+    }
+
     private void disconnected() {
+        // Process whatever the network thread received before closing
+        while (!incoming.isEmpty())
+            receivedMessages();
         renderStatus();
         ((CardLayout)(mainPanel.getLayout())).show(mainPanel, CARD_CONNECT);
     }
@@ -421,6 +673,45 @@ public class Client {
     private MySocket socket;
     private String nick;
     private String failReason;
+    /** Whether the current connection uses the framed protocol **/
+    private boolean framed;
+
+    /** Lines received by the network thread, waiting to be processed in the EDT **/
+    private final Queue<String> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    /**
+     * Thread that writes to the socket, so the EDT never blocks on the
+     * network (writes are kept in order).
+     */
+    private final ExecutorService sender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "sender");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Send text to the server, from the sender thread **/
+    private void send(final String text) {
+        final MySocket _socket = socket;
+        sender.execute(new Runnable() {
+            public void run() {
+                _socket.print(text);
+            }
+        });
+    }
+
+    /** Schedule a task to process the incoming lines, unless there's one pending **/
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            EventQueue.invokeLater(new Runnable() {
+                public void run() {
+                    receivedMessages();
+                }
+            });
+        }
+    }
 
     private boolean isActive() {
         return receiver != null && receiver.isAlive();
@@ -440,45 +731,62 @@ public class Client {
 
     // NETWORK THREAD
 
-    private final Pattern PATTERN_PARTICIPANTS =
-            Pattern.compile("^\\[current participants: (.+)\\]$");
-    private final Pattern PATTERN_JOINED =
-            Pattern.compile("^\\[(.+) joined the room\\]$");
-    private final Pattern PATTERN_LEFT =
-            Pattern.compile("^\\[(.+) left the room\\]$");
+    /** Protocol version to request, set to 1 to always use the legacy protocol **/
+    private static final int PROTOCOL_VERSION = Integer.getInteger("chat.protocol", Protocol.VERSION);
+    /** Whether to ask for compression, worth it on slow links **/
+    private static final boolean DEFLATE = Boolean.getBoolean("chat.deflate");
+
+    private void networkThread(final String hostname, final int port, final String nick) {
+        MySocket connection = null;
+        try {
+            // Try to connect, negotiating the framed protocol. Legacy servers
+            // close the connection when rejecting it, so connect again.
+            connection = MySocket.connect(hostname, port);
+            boolean framed = false;
+            if (PROTOCOL_VERSION >= Protocol.VERSION && !(framed = Protocol.negotiate(connection, DEFLATE))) {
+                connection.close();
+                connection = MySocket.connect(hostname, port);
+            }
 
-    private void networkThread(String hostname, int port, final String nick) {
-        // Try to connect
-        try (final MySocket socket = new MySocket(hostname, port)) {
             // Send nick
-            socket.print(nick + "\n");
-            String line = socket.readLine();
+            connection.print(nick + "\n");
+            String line = connection.readLine();
             if (line == null)
                 throw new IOException("Connection closed unexpectedly");
 
-            // Read participants or error from server
-            Matcher m;
-            if (!(m = PATTERN_PARTICIPANTS.matcher(line)).matches())
-                throw new IOException(line);
-            final String[] participants = m.group(1).split(", ");
+            // Read participants (the whole list for legacy servers, the
+            // count for framed ones) or error from server
+            final boolean[] joined = { false };
+            final List<String> participants = new ArrayList<>();
+            final String[] error = { line };
+            Protocol.decode(line, framed, new Protocol.Handler() {
+                public void joined(String nick) {}
+                public void left(String nick) {}
+                public void message(String nick, String text) {}
+                public void participantCount(int count) { joined[0] = true; }
+                public void participants(List<String> nicks) { participants.addAll(nicks); }
+                public void info(String text) {}
+                public void error(String text) { error[0] = text; }
+            });
+            if (!joined[0])
+                throw new IOException(error[0]);
 
             // Send connected event
+            final MySocket _socket = connection;
+            final boolean _framed = framed;
             EventQueue.invokeLater(new Runnable() {
                 public void run() {
-                    Client.this.socket = socket;
+                    Client.this.socket = _socket;
                     Client.this.nick = nick;
+                    Client.this.framed = _framed;
                     connected(participants);
                 }
             });
 
             // Main loop
-            while ((line = socket.readLine()) != null) {
-                final String _line = line;
-                EventQueue.invokeLater(new Runnable() {
-                    public void run() {
-                        receivedMessage(_line);
-                    }
-                });
+            while ((line = connection.readLine()) != null) {
+                incoming.add(line);
+                scheduleDrain();
             }
         } catch (final IOException | RuntimeException ex) {
             EventQueue.invokeLater(new Runnable() {
@@ -487,6 +795,8 @@ public class Client {
                 }
             });
         } finally {
+            if (connection != null)
+                connection.close();
             EventQueue.invokeLater(new Runnable() {
                 public void run() {
                     socket = null;
@@ -534,26 +844,10 @@ public class Client {
         // Start the application
         EventQueue.invokeLater(new Runnable() {
             public void run() {
-                Client client = new Client();
+                Client client = new Client(Integer.getInteger("chat.scrollback", DEFAULT_SCROLLBACK));
                 client.frame.setVisible(true);
             }
         });
     }
 
-    public static String escapeHTML(String s) {
-        // By Bruno Eberhard - https://stackoverflow.com/a/25228492/710951
-        StringBuilder out = new StringBuilder(Math.max(16, s.length()));
-        for (int i = 0; i < s.length(); i++) {
-            char c = s.charAt(i);
-            if (c > 127 || c == '"' || c == '<' || c == '>' || c == '&') {
-                out.append("&#");
-                out.append((int) c);
-                out.append(';');
-            } else {
-                out.append(c);
-            }
-        }
-        return out.toString();
-    }
-
 }
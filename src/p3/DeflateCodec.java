@@ -0,0 +1,105 @@
+package p3;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Streaming compression for a connection: a raw deflate stream in each
+ * direction, flushed (with {@link Deflater#SYNC_FLUSH}) after each write
+ * so the peer can decompress it right away. The compression context is
+ * kept for the whole connection, so repeated text (nicknames, frames,
+ * common words) is compressed against everything sent before, which is
+ * where most of the savings on chat traffic come from.
+ *
+ * Not thread-safe.
+ *
+ * @author Alba Mendez
+ */
+public class DeflateCodec {
+
+    /**
+     * Default limit for the data decompressed from a single received chunk.
+     * Chat traffic expands a few times; deflate can expand ~1000 times.
+     */
+    public static final long DEFAULT_DECOMPRESS_LIMIT = 1 << 20;
+
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] buffer = new byte[16384];
+    private long bytesIn, bytesOut;
+    private long decompressLimit = DEFAULT_DECOMPRESS_LIMIT;
+    private boolean ended;
+
+    public DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public DeflateCodec(int level) {
+        deflater = new Deflater(level, true);
+    }
+
+    /** Compress data, ending with a sync flush **/
+    public byte[] compress(byte[] data, int offset, int length) {
+        deflater.setInput(data, offset, length);
+        ByteArrayOutputStream result = new ByteArrayOutputStream(length / 2 + 16);
+        int n;
+        do {
+            n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            result.write(buffer, 0, n);
+        } while (n == buffer.length);
+        bytesIn += length;
+        bytesOut += result.size();
+        return result.toByteArray();
+    }
+
+    /**
+     * Set the maximum number of bytes a single call to {@link #decompress}
+     * may produce. Defaults to {@link #DEFAULT_DECOMPRESS_LIMIT}.
+     */
+    public void setDecompressLimit(long decompressLimit) {
+        this.decompressLimit = decompressLimit;
+    }
+
+    /**
+     * Decompress received data (all of it that can be decompressed so far),
+     * passing it to {@code sink} in pieces of up to 16KiB as they're
+     * produced, so data that expands a lot is never held in memory at once.
+     * Stops if the sink ends the codec.
+     *
+     * @throws DataFormatException If the data is invalid, or expands past
+     *         the decompress limit (a decompression bomb).
+     */
+    public void decompress(byte[] data, Consumer<byte[]> sink) throws DataFormatException {
+        inflater.setInput(data);
+        long total = 0;
+        int n;
+        while (!ended && (n = inflater.inflate(buffer)) > 0) {
+            total += n;
+            if (total > decompressLimit)
+                throw new DataFormatException("Compressed data expands past " + decompressLimit + " bytes");
+            sink.accept(Arrays.copyOf(buffer, n));
+        }
+    }
+
+    /** Uncompressed bytes passed to {@link #compress} **/
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /** Compressed bytes produced by {@link #compress} **/
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /** Free the native resources. The codec can't be used afterwards. **/
+    public void end() {
+        ended = true;
+        deflater.end();
+        inflater.end();
+    }
+
+}
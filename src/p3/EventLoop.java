@@ -1,6 +1,7 @@
 package p3;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
@@ -9,12 +10,26 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import p2.Histogram;
 
 /**
  * Simple event loop.
+ *
+ * The loop collects statistics about itself (iterations, time spent in
+ * handlers, lag of timers, etc.) which can be queried through
+ * {@link #getSnapshot()} or through JMX, see {@link #registerMBean}.
+ *
  * @author Alba Mendez
  */
-public class EventLoop implements Runnable {
+public class EventLoop implements Runnable, Executor {
 
     private class Handler {
         int ops;
@@ -26,11 +41,73 @@ public class EventLoop implements Runnable {
         }
     }
 
+    /**
+     * Handle for a callback scheduled with {@link #setTimeout} or
+     * {@link #setInterval}.
+     */
+    public class Timer implements Comparable<Timer> {
+        private final Runnable callback;
+        private final long period;
+        private final long sequence = timerSequence++;
+        private long deadline;
+        private boolean cancelled;
+        private boolean referenced = true;
+
+        private Timer(Runnable callback, long delay, long period) {
+            this.callback = callback;
+            this.period = period;
+            this.deadline = System.nanoTime() + delay * 1000000;
+        }
+
+        /** Prevent the callback from being run (again) **/
+        public void cancel() {
+            if (cancelled) return;
+            cancelled = true;
+            if (referenced) activeTimers--;
+        }
+
+        /**
+         * Don't keep the loop running just for this timer: once nothing
+         * else is pending, the loop ends as if the timer was cancelled.
+         *
+         * @return This timer.
+         */
+        public Timer unref() {
+            if (!cancelled && referenced) {
+                referenced = false;
+                activeTimers--;
+            }
+            return this;
+        }
+
+        @Override
+        public int compareTo(Timer o) {
+            if (deadline != o.deadline)
+                return deadline - o.deadline < 0 ? -1 : 1;
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+
     private static final ThreadLocal<EventLoop> CURRENT = new ThreadLocal<>();
 
     private final Map<SelectionKey, List<Handler>> handlers = new HashMap<>();
     private final List<Runnable> tickHandlers = new ArrayList<>();
-    private Selector sel;
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private final ConcurrentLinkedQueue<Runnable> posted = new ConcurrentLinkedQueue<>();
+    private int activeTimers;
+    private long timerSequence;
+    private volatile Selector sel;
+
+    // Statistics (only accessed from the loop)
+    private long iterations, dispatched;
+    private final Histogram iterationTime = new Histogram();
+    private final Histogram lag = new Histogram();
+    private final Histogram readyKeys = new Histogram();
+    private final Histogram handlersPerIteration = new Histogram();
+    private final Histogram pendingTicks = new Histogram();
+    private volatile boolean resetRequested;
+    private Timer statisticsTimer;
+    private ObjectName mbeanName;
 
     /**
      * Constructs a new event loop.
@@ -81,6 +158,20 @@ public class EventLoop implements Runnable {
         }
     }
 
+    /**
+     * Remove all handlers associated with the channel, and stop monitoring
+     * it. This happens implicitly when the channel is closed, but calling
+     * this method releases the handlers immediately.
+     *
+     * @param channel Channel to stop monitoring.
+     */
+    public void unregister(SelectableChannel channel) {
+        SelectionKey key = channel.keyFor(sel);
+        if (key == null) return;
+        key.cancel();
+        handlers.remove(key);
+    }
+
     /**
      * Temporarily enable or disable listening for the passed operations on
      * the channel.
@@ -99,6 +190,7 @@ public class EventLoop implements Runnable {
      */
     public void setActive(SelectableChannel channel, int ops, boolean active) {
         SelectionKey key = channel.keyFor(sel);
+        if (key == null || !key.isValid()) return; // (channel was closed)
         int kops = key.interestOps();
         key.interestOps(active ? (kops | ops) : (kops & ~ops));
     }
@@ -115,29 +207,134 @@ public class EventLoop implements Runnable {
         tickHandlers.add(callback);
     }
 
+    /**
+     * Schedule a handler to be run once, after the passed time. The loop
+     * doesn't end while there are timers pending.
+     *
+     * This method can be called when the loop is not executing.
+     *
+     * @param callback Handler to run.
+     * @param delay Time to wait, in milliseconds.
+     * @return Timer handle, which can be used to cancel it.
+     */
+    public Timer setTimeout(Runnable callback, long delay) {
+        Timer timer = new Timer(callback, delay, 0);
+        timers.add(timer);
+        activeTimers++;
+        return timer;
+    }
+
+    /**
+     * Schedule a handler to be run repeatedly, every time the passed
+     * period elapses, until the returned timer is cancelled.
+     *
+     * @param callback Handler to run.
+     * @param period Time between runs, in milliseconds (must be positive).
+     * @return Timer handle, which can be used to cancel it.
+     */
+    public Timer setInterval(Runnable callback, long period) {
+        if (period <= 0)
+            throw new IllegalArgumentException("Period must be positive");
+        Timer timer = new Timer(callback, period, period * 1000000);
+        timers.add(timer);
+        activeTimers++;
+        return timer;
+    }
+
+    /**
+     * Run a task in the loop, in the next iteration. Unlike the rest of
+     * the methods, this one can be called from any thread.
+     *
+     * @param task Task to run.
+     */
+    @Override
+    public void execute(Runnable task) {
+        posted.add(task);
+        Selector sel = this.sel;
+        if (sel != null) sel.wakeup();
+    }
+
+    /**
+     * Run a task in the loop and wait (up to a second) for its result. Can be
+     * called from any thread except the loop itself.
+     *
+     * @throws IllegalStateException If the loop doesn't run the task in time.
+     */
+    public <T> T query(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        execute(future);
+        try {
+            return future.get(1, TimeUnit.SECONDS);
+        } catch (Exception ex) {
+            throw new IllegalStateException("Event loop not responding", ex);
+        }
+    }
+
     private boolean isDead() {
-        return tickHandlers.isEmpty() && sel.keys().isEmpty();
+        return tickHandlers.isEmpty() && posted.isEmpty() && activeTimers == 0 && sel.keys().isEmpty();
     }
 
-    private int getSelectTime() {
-        if (!tickHandlers.isEmpty())
+    private long getSelectTime() {
+        if (!tickHandlers.isEmpty() || !posted.isEmpty())
             return 1;
+        while (!timers.isEmpty() && timers.peek().cancelled)
+            timers.remove();
+        if (!timers.isEmpty()) {
+            long wait = timers.peek().deadline - System.nanoTime();
+            return Math.max(1, (wait + 999999) / 1000000);
+        }
         return 0;
     }
 
+    private int runTimers() {
+        long now = System.nanoTime();
+        int run = 0;
+        Timer timer;
+        while ((timer = timers.peek()) != null && timer.deadline - now <= 0) {
+            timers.remove();
+            if (timer.cancelled) continue;
+            lag.record(now - timer.deadline);
+            if (timer.period > 0) {
+                // (if we're late, skip the missed runs)
+                timer.deadline += timer.period;
+                if (timer.deadline - now <= 0)
+                    timer.deadline = now + timer.period;
+                timers.add(timer);
+            } else {
+                timer.cancel();
+            }
+            timer.callback.run();
+            run++;
+        }
+        return run;
+    }
+
     private void loop() throws IOException {
         while (!isDead()) {
+            if (resetRequested) {
+                resetStatistics0();
+                resetRequested = false;
+            }
+            long start = System.nanoTime();
+
             // Tick handlers
             List<Runnable> th = new ArrayList<>(tickHandlers);
             tickHandlers.clear();
+            Runnable task;
+            while ((task = posted.poll()) != null) th.add(task);
+            pendingTicks.record(th.size());
             for (Runnable r : th) r.run();
 
             // Selection operation
-            sel.select(getSelectTime());
+            long selectStart = System.nanoTime();
+            int ready = sel.select(getSelectTime());
+            long selectEnd = System.nanoTime();
+            readyKeys.record(ready);
 
             // Dispatch events
             List<Runnable> eh = new ArrayList<>();
             for (SelectionKey key : sel.selectedKeys()) {
+                if (!key.isValid()) continue;
                 for (Handler handler : handlers.get(key)) {
                     if ((handler.ops & key.readyOps()) != 0)
                         eh.add(handler.callback);
@@ -145,7 +342,84 @@ public class EventLoop implements Runnable {
             }
             sel.selectedKeys().clear();
             for (Runnable r: eh) r.run();
+
+            // Timers
+            int timersRun = runTimers();
+
+            // Statistics
+            long handlers = th.size() + eh.size() + timersRun;
+            iterations++;
+            dispatched += handlers;
+            handlersPerIteration.record(handlers);
+            iterationTime.record((selectStart - start) + (System.nanoTime() - selectEnd));
+        }
+    }
+
+
+    // STATISTICS
+
+    private void resetStatistics0() {
+        iterations = dispatched = 0;
+        for (Histogram h : new Histogram[] { iterationTime, lag, readyKeys, handlersPerIteration, pendingTicks })
+            h.reset();
+    }
+
+    /**
+     * Get a text report of the loop statistics. Must be called from the
+     * loop (use the MBean from other threads).
+     */
+    public String getSnapshot() {
+        return String.format("iterations: %d%n" + "handlers dispatched: %d%n"
+                + "channels: %d%n" + "pending timers: %d%n"
+                + "iteration time: %s%n" + "lag: %s%n" + "ready keys per select: %s%n"
+                + "handlers per iteration: %s%n" + "pending ticks per iteration: %s%n",
+                iterations, dispatched, sel.keys().size(), activeTimers,
+                iterationTime.durationSummary(), lag.durationSummary(), readyKeys.summary(),
+                handlersPerIteration.summary(), pendingTicks.summary());
+    }
+
+    /**
+     * Register an MBean for this loop in the platform MBean server, with
+     * the passed name. This also schedules a timer that runs every 100ms,
+     * so that the lag is measured even if there are no other timers (the
+     * timer doesn't keep the loop running). The MBean is unregistered
+     * when the loop ends.
+     *
+     * @param name Object name, such as {@code "p3:type=EventLoop"}.
+     */
+    public void registerMBean(String name) {
+        if (statisticsTimer == null)
+            statisticsTimer = setInterval(() -> {}, 100).unref();
+        try {
+            mbeanName = new ObjectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new EventLoopMXBean() {
+                public long getIterations() { return query(() -> iterations); }
+                public long getHandlersDispatched() { return query(() -> dispatched); }
+                public int getPendingTicks() { return query(() -> tickHandlers.size()); }
+                public int getPendingTimers() { return query(() -> activeTimers); }
+                public int getChannels() { return query(() -> sel.keys().size()); }
+                public long getIterationTimeP99() { return query(() -> iterationTime.getValueAtPercentile(99)); }
+                public long getIterationTimeMax() { return query(() -> iterationTime.getMax()); }
+                public long getLagP99() { return query(() -> lag.getValueAtPercentile(99)); }
+                public long getLagMax() { return query(() -> lag.getMax()); }
+                public double getReadyKeysMean() { return query(() -> readyKeys.getMean()); }
+                public double getHandlersPerIterationMean() { return query(() -> handlersPerIteration.getMean()); }
+                public String getSnapshot() { return query(() -> EventLoop.this.getSnapshot()); }
+                public void resetStatistics() { resetRequested = true; }
+            }, mbeanName);
+        } catch (Exception ex) {
+            throw new RuntimeException("Couldn't register MBean", ex);
+        }
+    }
+
+    private void unregisterMBean() {
+        if (mbeanName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch (JMException ex) {
+            // (already unregistered)
         }
+        mbeanName = null;
     }
 
     /**
@@ -160,6 +434,9 @@ public class EventLoop implements Runnable {
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         } finally {
+            if (statisticsTimer != null)
+                statisticsTimer.cancel();
+            unregisterMBean();
             CURRENT.remove();
         }
     }
@@ -0,0 +1,50 @@
+package p3;
+
+/**
+ * Management interface of an {@link EventLoop}, see
+ * {@link EventLoop#registerMBean(String)}.
+ *
+ * Durations are in nanoseconds. Statistics are collected since the loop
+ * started or since they were last reset.
+ *
+ * @author Alba Mendez
+ */
+public interface EventLoopMXBean {
+
+    /** Number of loop iterations **/
+    long getIterations();
+
+    /** Number of handlers (ticks, I/O handlers and timers) run **/
+    long getHandlersDispatched();
+
+    /** Tick handlers waiting for the next iteration **/
+    int getPendingTicks();
+
+    /** Timers waiting to expire **/
+    int getPendingTimers();
+
+    /** Channels being monitored **/
+    int getChannels();
+
+    /** Time spent running handlers in an iteration (excluding select), 99th percentile **/
+    long getIterationTimeP99();
+
+    long getIterationTimeMax();
+
+    /** Delay between the time timers were due and the time they ran, 99th percentile **/
+    long getLagP99();
+
+    long getLagMax();
+
+    /** Keys ready in each select, mean **/
+    double getReadyKeysMean();
+
+    /** Handlers run in each iteration, mean **/
+    double getHandlersPerIterationMean();
+
+    /** Text report of all the statistics, including percentiles **/
+    String getSnapshot();
+
+    void resetStatistics();
+
+}
@@ -0,0 +1,237 @@
+package p3;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import p2.Histogram;
+import p3.Server.NetSocket;
+import p3.Server.Readline;
+import static p3.EventLoop.currentLoop;
+
+/**
+ * Headless load generator for the chat servers (works with both p2 and p3,
+ * as they speak the same protocol).
+ *
+ * It opens many connections from a single event loop, joins the room with
+ * each of them, and then sends messages at a fixed total rate, round-robin
+ * among the joined connections. Each message carries its send time, so the
+ * fan-out latency is measured when it's delivered to the other peers.
+ *
+ * Opening tens of thousands of connections needs a high enough limit of
+ * open files (see {@code ulimit -n}) on both ends.
+ *
+ * @author Alba Mendez
+ */
+public class LoadGenerator implements Runnable {
+
+    private final InetSocketAddress address;
+    private int connections = 100;
+    private int concurrentConnects = 256;
+    private double rate = 100;
+    private int size = 64;
+    private int duration = 30;
+
+    public LoadGenerator(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    /** Number of connections to open **/
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    /** Maximum number of connection attempts in progress at a time **/
+    public void setConcurrentConnects(int concurrentConnects) {
+        this.concurrentConnects = concurrentConnects;
+    }
+
+    /** Total messages to send per second **/
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    /** Size of each message, in bytes **/
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    /** Seconds to send messages for, once all connections are open **/
+    public void setDuration(int duration) {
+        this.duration = duration;
+    }
+
+
+    // STATE
+
+    private final String runId = Integer.toString(new Random().nextInt(1 << 20), 36);
+    private final List<NetSocket> joined = new ArrayList<>();
+    private final Histogram latency = new Histogram();
+    private final Histogram totalLatency = new Histogram();
+    private long start;
+    private int started, pending, handshaking, failed, closed;
+    private long connected, sent, delivered;
+    private long lastConnected, lastSent, lastDelivered, lastReport;
+    private long sendingSince = -1;
+    private int next;
+    private String padding;
+
+    @Override
+    public void run() {
+        StringBuilder pad = new StringBuilder();
+        for (int i = 0; i < size; i++)
+            pad.append((char) ('a' + i % 26));
+        padding = pad.toString();
+
+        System.out.printf("Opening %d connections to %s%n", connections, address);
+        start = lastReport = System.nanoTime();
+        openConnections();
+        currentLoop().setInterval(() -> report(), 1000);
+        currentLoop().setInterval(() -> sendMessages(), 10);
+    }
+
+    private void openConnections() {
+        while (started < connections && pending < concurrentConnects) {
+            final String nick = "lg" + runId + "-" + started;
+            started++;
+            pending++;
+            final NetSocket socket = Server.createConnection(address, () -> {
+                pending--;
+                connected++;
+                openConnections();
+            });
+            socket.on("connect", () -> handshake(socket, nick));
+            socket.on("error", (Exception ex) -> {
+                if (socket.isConnecting()) {
+                    pending--;
+                    failed++;
+                    openConnections();
+                }
+                socket.destroy();
+            });
+        }
+    }
+
+    private void handshake(final NetSocket socket, String nick) {
+        final Readline rl = new Readline(socket);
+        final boolean[] replied = { false };
+        handshaking++;
+        rl.once("line", (String line) -> {
+            replied[0] = true;
+            handshaking--;
+            if (!line.startsWith("[current participants: ")) {
+                failed++;
+                socket.destroy();
+                return;
+            }
+            joined.add(socket);
+            rl.on("line", (String message) -> receivedMessage(message));
+        });
+        rl.on("close", () -> {
+            closed++;
+            joined.remove(socket);
+            if (!replied[0])
+                handshaking--;
+            if (next >= joined.size()) next = 0;
+        });
+        socket.write(nick + "\n");
+    }
+
+    /**
+     * Record the latency of a message we sent. Lines from before we started
+     * sending (such as history replayed on join, maybe from another run)
+     * and timestamps that aren't ours are ignored.
+     */
+    private void receivedMessage(String line) {
+        if (sendingSince < 0) return;
+        int i = line.indexOf(": t=");
+        if (i == -1) return;
+        long sentAt = 0;
+        for (i += 4; i < line.length() && line.charAt(i) != ' '; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') return;
+            sentAt = sentAt * 10 + (c - '0');
+        }
+        long elapsed = System.nanoTime() - sentAt;
+        if (sentAt - sendingSince < 0 || elapsed < 0) return;
+        latency.record(elapsed);
+        totalLatency.record(elapsed);
+        delivered++;
+    }
+
+    private void sendMessages() {
+        if (started < connections || pending > 0 || handshaking > 0)
+            return;
+        long now = System.nanoTime();
+        if (sendingSince < 0) {
+            sendingSince = now;
+            System.out.printf("All connections open (%d joined, %d failed), sending messages%n",
+                    joined.size(), failed);
+        }
+        if (now - sendingSince > duration * 1000000000L) {
+            finish();
+            return;
+        }
+        long due = (long) ((now - sendingSince) / 1e9 * rate);
+        for (; sent < due && !joined.isEmpty(); sent++) {
+            NetSocket socket = joined.get(next);
+            next = (next + 1) % joined.size();
+            socket.write("t=" + System.nanoTime() + " " + padding + "\n");
+        }
+    }
+
+    private void report() {
+        long now = System.nanoTime();
+        double elapsed = (now - lastReport) / 1e9;
+        System.out.printf("[%4.0fs] conns %d (+%.0f/s) sent %.0f/s delivered %.0f/s latency %s%n",
+                (now - start) / 1e9, connected - closed, (connected - lastConnected) / elapsed,
+                (sent - lastSent) / elapsed, (delivered - lastDelivered) / elapsed,
+                latency.durationSummary());
+        lastConnected = connected;
+        lastSent = sent;
+        lastDelivered = delivered;
+        lastReport = now;
+        latency.reset();
+    }
+
+    private void finish() {
+        double elapsed = (System.nanoTime() - sendingSince) / 1e9;
+        System.out.printf("%nSummary: %d connections (%d failed), %d messages sent, "
+                + "%d delivered (%.0f/s)%nFan-out latency: %s%n", connected, failed, sent,
+                delivered, delivered / elapsed, totalLatency.durationSummary());
+        System.exit(0);
+    }
+
+    public static void main(String[] args) {
+        List<String> positional = new ArrayList<>();
+        int connections = 100, size = 64, duration = 30;
+        double rate = 100;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-c": connections = Integer.parseInt(args[++i]); break;
+                    case "-r": rate = Double.parseDouble(args[++i]); break;
+                    case "-s": size = Integer.parseInt(args[++i]); break;
+                    case "-d": duration = Integer.parseInt(args[++i]); break;
+                    default: positional.add(args[i]);
+                }
+            }
+        } catch (RuntimeException ex) {
+            positional.clear();
+        }
+        if (positional.size() < 1 || positional.size() > 2) {
+            System.err.println("Usage: LoadGenerator [-c <connections>] [-r <messages/s>] "
+                    + "[-s <message size>] [-d <seconds>] <hostname> [<port>]");
+            System.exit(1);
+        }
+
+        int port = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 3500;
+        LoadGenerator generator = new LoadGenerator(new InetSocketAddress(positional.get(0), port));
+        generator.setConnections(connections);
+        generator.setRate(rate);
+        generator.setSize(size);
+        generator.setDuration(duration);
+        new EventLoop(generator).run();
+    }
+
+}
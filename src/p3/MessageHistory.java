@@ -0,0 +1,105 @@
+package p3;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.swing.AbstractListModel;
+
+/**
+ * List model holding the last messages of the chat, up to a fixed
+ * capacity. Entries are kept in a ring buffer, so adding entries and
+ * evicting the oldest ones takes constant time regardless of the size of
+ * the scrollback.
+ *
+ * Must only be used from the EDT, like any other Swing model.
+ *
+ * @author Alba Mendez
+ */
+public class MessageHistory extends AbstractListModel<MessageHistory.Entry> {
+
+    private static final long serialVersionUID = 1L;
+
+    /** A chat message, or a notification if {@code nick} is null **/
+    public static class Entry {
+        public final String nick;
+        public final String content;
+
+        public Entry(String nick, String content) {
+            this.nick = nick;
+            this.content = content;
+        }
+
+        public boolean isNotification() {
+            return nick == null;
+        }
+
+        @Override
+        public String toString() {
+            return isNotification() ? content : nick + ": " + content;
+        }
+    }
+
+    private final Entry[] entries;
+    private int head;
+    private int size;
+
+    public MessageHistory(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive");
+        entries = new Entry[capacity];
+    }
+
+    public int getCapacity() {
+        return entries.length;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public Entry getElementAt(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        return entries[(head + index) % entries.length];
+    }
+
+    public void add(Entry entry) {
+        addAll(Collections.singletonList(entry));
+    }
+
+    /**
+     * Append entries at the end, evicting the oldest ones if needed. Fires
+     * (at most) one removal and one addition event for the whole batch.
+     */
+    public void addAll(List<Entry> batch) {
+        int n = batch.size();
+        if (n == 0) return;
+        // Only the last entries of a batch bigger than the capacity are kept
+        int skip = Math.max(0, n - entries.length);
+        int evicted = Math.min(size, Math.max(0, size + n - skip - entries.length));
+
+        if (evicted > 0) {
+            for (int i = 0; i < evicted; i++)
+                entries[(head + i) % entries.length] = null;
+            head = (head + evicted) % entries.length;
+            size -= evicted;
+            fireIntervalRemoved(this, 0, evicted - 1);
+        }
+
+        int start = size;
+        for (int i = skip; i < n; i++)
+            entries[(head + size++) % entries.length] = batch.get(i);
+        fireIntervalAdded(this, start, size - 1);
+    }
+
+    public void clear() {
+        if (size == 0) return;
+        int oldSize = size;
+        Arrays.fill(entries, null);
+        head = size = 0;
+        fireIntervalRemoved(this, 0, oldSize - 1);
+    }
+
+}
@@ -0,0 +1,121 @@
+package p3;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.swing.AbstractListModel;
+
+/**
+ * List model holding the participants of the room, sorted by nickname.
+ * Membership is looked up in a hash set, and positions are found by binary
+ * search, so single joins and leaves don't scan the list. Bigger batches
+ * of changes are merged into the list in a single pass, and fire a single
+ * set of events.
+ *
+ * Must only be used from the EDT, like any other Swing model.
+ *
+ * @author Alba Mendez
+ */
+public class ParticipantList extends AbstractListModel<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Batches of at least this many changes are merged instead of applied one by one **/
+    private static final int MERGE_THRESHOLD = 16;
+
+    public static final Comparator<String> ORDER =
+            String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+    private ArrayList<String> sorted = new ArrayList<>();
+    private final Set<String> members = new HashSet<>();
+
+    @Override
+    public int getSize() {
+        return sorted.size();
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return sorted.get(index);
+    }
+
+    public boolean contains(String nick) {
+        return members.contains(nick);
+    }
+
+    public boolean add(String nick) {
+        if (!members.add(nick)) return false;
+        int index = -Collections.binarySearch(sorted, nick, ORDER) - 1;
+        sorted.add(index, nick);
+        fireIntervalAdded(this, index, index);
+        return true;
+    }
+
+    public boolean remove(String nick) {
+        if (!members.remove(nick)) return false;
+        int index = Collections.binarySearch(sorted, nick, ORDER);
+        sorted.remove(index);
+        fireIntervalRemoved(this, index, index);
+        return true;
+    }
+
+    /** Replace all participants **/
+    public void set(Collection<String> nicks) {
+        clear();
+        update(nicks, Collections.<String>emptySet());
+    }
+
+    public void clear() {
+        if (sorted.isEmpty()) return;
+        int oldSize = sorted.size();
+        sorted = new ArrayList<>();
+        members.clear();
+        fireIntervalRemoved(this, 0, oldSize - 1);
+    }
+
+    /**
+     * Apply a batch of changes. A nickname shouldn't be both added and
+     * removed in the same batch.
+     */
+    public void update(Collection<String> added, Collection<String> removed) {
+        if (added.size() + removed.size() < MERGE_THRESHOLD) {
+            for (String nick : removed) remove(nick);
+            for (String nick : added) add(nick);
+            return;
+        }
+
+        // Drop removed participants, and merge the (sorted) new ones in
+        for (String nick : removed) members.remove(nick);
+        List<String> fresh = new ArrayList<>();
+        for (String nick : added)
+            if (members.add(nick)) fresh.add(nick);
+        fresh.sort(ORDER);
+
+        int oldSize = sorted.size();
+        ArrayList<String> merged = new ArrayList<>(members.size());
+        int i = 0, j = 0;
+        while (i < oldSize || j < fresh.size()) {
+            if (i < oldSize && !members.contains(sorted.get(i))) {
+                i++;
+            } else if (j == fresh.size() || (i < oldSize && ORDER.compare(sorted.get(i), fresh.get(j)) < 0)) {
+                merged.add(sorted.get(i++));
+            } else {
+                merged.add(fresh.get(j++));
+            }
+        }
+        sorted = merged;
+
+        int newSize = sorted.size(), common = Math.min(oldSize, newSize);
+        if (common > 0)
+            fireContentsChanged(this, 0, common - 1);
+        if (newSize > oldSize)
+            fireIntervalAdded(this, oldSize, newSize - 1);
+        else if (newSize < oldSize)
+            fireIntervalRemoved(this, newSize, oldSize - 1);
+    }
+
+}
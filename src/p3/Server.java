@@ -1,16 +1,32 @@
 package p3;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
 import java.util.*;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import javax.management.ObjectName;
+import p2.ChatLog;
+import p2.History;
+import p2.Protocol;
+import p2.Tracer;
+import p2.UnixSockets;
 import static java.nio.channels.SelectionKey.*;
 import static p3.EventLoop.currentLoop;
 
@@ -22,55 +38,559 @@ import static p3.EventLoop.currentLoop;
 public class Server implements Runnable {
 
     private final int port;
+    private int traceInterval;
+    private History history;
+    private ChatLog chatLog;
+    private Spool spool;
+    private long maxFileSize = 64 << 20;
+    private long spoolBudget = 1L << 30;
+    private long fileLifetime = 3600 * 1000;
+    private long uploadTimeout = 30000;
+    private double messageRate, byteRate;
+    /** Seconds worth of tokens that peers can use in a burst **/
+    private static final double RATE_BURST = 2;
+    private long throttled;
+    private long handshakeTimeout = 0, idleTimeout = 0;
+    private long handshakeTimeouts, idleTimeouts, uploadTimeouts;
+    private TlsContext tls;
+    private int tlsPort;
+    private boolean compression = true;
+    private Path unixPath;
+    private int telnetPort;
+    private long telnetHandshakeTimeout = 300000;
+    /** Peers by nickname, sorted so the participant listing can be paged **/
+    private final TreeMap<String, NetSocket> peers = new TreeMap<>();
+    /** Sockets that negotiated the framed protocol **/
+    private final Set<NetSocket> framedPeers = new HashSet<>();
+    /** Upload in progress on each socket (there can only be one, as it takes over the input) **/
+    private final Map<NetSocket, Upload> uploads = new HashMap<>();
+    private long closedBytesRead, closedBytesWritten;
+    private EventLoop loop;
 
     public Server(int port) {
         this.port = port;
     }
 
+    /**
+     * Enable tracing of the time spent by messages in each stage, and dump
+     * the collected latencies to stderr with the passed interval.
+     */
+    public void setTracing(int intervalSeconds) {
+        this.traceInterval = intervalSeconds;
+    }
+
+    /**
+     * Keep the passed number of messages, and replay them to peers when
+     * they join. Zero disables the history.
+     */
+    public void setHistoryDepth(int depth) {
+        this.history = (depth > 0) ? new History(depth) : null;
+    }
+
+    /**
+     * Append the chat messages to the passed log, and let framed clients
+     * request them (see {@link Protocol#LOG}). Null disables logging.
+     */
+    public void setChatLog(ChatLog chatLog) {
+        this.chatLog = chatLog;
+    }
+
+    /**
+     * Let framed clients offer files to the room (see {@link Protocol#OFFER}),
+     * keeping them in the passed spool. Null disables file transfers.
+     */
+    public void setSpool(Spool spool) {
+        this.spool = spool;
+    }
+
+    /**
+     * Set the limits for offered files: the maximum size of each file, and
+     * of all the files in the spool. Default to 64MiB and 1GiB.
+     */
+    public void setFileLimits(long maxFileSize, long spoolBudget) {
+        this.maxFileSize = maxFileSize;
+        this.spoolBudget = spoolBudget;
+    }
+
+    /** Set how long (in milliseconds) offered files can be fetched. Defaults to an hour. **/
+    public void setFileLifetime(long fileLifetime) {
+        this.fileLifetime = fileLifetime;
+    }
+
+    /**
+     * Set how long (in milliseconds) an upload may go without receiving
+     * data before it's dropped and the connection closed, so stalled
+     * uploads don't keep their space in the spool. Zero means forever.
+     * Defaults to 30s.
+     */
+    public void setUploadTimeout(long uploadTimeout) {
+        this.uploadTimeout = uploadTimeout;
+    }
+
+    /**
+     * Limit the messages (and commands) each peer can send per second, and
+     * their size per second, in bytes of UTF-8 as received (after any
+     * decompression) including the newline. Peers can send twice as much
+     * in a burst. When they exceed a limit, reading from them is paused until
+     * they're back within it, so their data stays in the socket buffers
+     * (and eventually, the client is blocked by TCP flow control).
+     * Zero disables a limit. Both are disabled by default.
+     */
+    public void setRateLimit(double messagesPerSecond, double bytesPerSecond) {
+        this.messageRate = messagesPerSecond;
+        this.byteRate = bytesPerSecond;
+    }
+
+    /**
+     * Set how long (in milliseconds) a connection may take to send its
+     * nickname before it's closed. Zero (the default) means forever, since
+     * interactive clients (like p2.Client) connect before asking the user.
+     */
+    public void setHandshakeTimeout(long handshakeTimeout) {
+        this.handshakeTimeout = handshakeTimeout;
+    }
+
+    /**
+     * Set how long (in milliseconds) a peer may go without sending anything
+     * before it's disconnected. Zero (the default) means forever. Note that
+     * clients don't send anything when their user isn't talking.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Also listen on the passed port for TLS connections. The handshake
+     * timeout includes the TLS handshake.
+     */
+    public void setTls(TlsContext tls, int port) {
+        this.tls = tls;
+        this.tlsPort = port;
+    }
+
+    /**
+     * Also listen on a Unix domain socket at the passed path, for local
+     * clients (see {@link NetServer#listen(Path)}).
+     */
+    public void setUnixSocket(Path path) {
+        this.unixPath = path;
+    }
+
+    /**
+     * Also listen on the passed port for telnet users (see
+     * {@link TelnetGateway}). They join the chat as legacy peers.
+     */
+    public void setTelnet(int port) {
+        this.telnetPort = port;
+    }
+
+    /**
+     * Set how long (in milliseconds) telnet users may take to type their
+     * nickname, instead of the handshake timeout (they're people, not
+     * programs). Zero means forever. Defaults to 5 minutes.
+     */
+    public void setTelnetHandshakeTimeout(long telnetHandshakeTimeout) {
+        this.telnetHandshakeTimeout = telnetHandshakeTimeout;
+    }
+
+    /**
+     * Set whether peers may negotiate compression (see
+     * {@link Protocol#DEFLATE}). Enabled by default. Each compressed
+     * connection keeps a deflate context in each direction, which is
+     * about 300KiB of native memory.
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
     /**
      * Main server code.
      */
     @Override
     public void run() {
 
-        final Map<String, NetSocket> peers = new HashMap<>();
-        final BiConsumer<String, String> broadcast = (origin, data) ->
-                peers.forEach((nick, socket) ->
-                    { if (!nick.equals(origin)) socket.write(data); });
+        loop = currentLoop();
+        final BiConsumer<String, Protocol.Encoded> broadcast = (origin, message) ->
+            peers.forEach((nick, socket) -> {
+                if (!nick.equals(origin))
+                    socket.write(ByteBuffer.wrap(message.bytes(framedPeers.contains(socket))));
+            });
 
-        NetServer server = createServer((socket) -> {
+        final Tracer tracer = (traceInterval > 0) ? new Tracer(1) : null;
+        if (tracer != null) {
+            currentLoop().setInterval(() -> System.err.print(
+                    "Trace (last " + traceInterval + "s):\n" + tracer.dump(true)), traceInterval * 1000L);
+        }
+        final BiConsumer<String, Protocol.Encoded> tracedBroadcast = (origin, message) -> {
+            final long received = peers.get(origin).getLastReadTime();
+            message.bytes(false);
+            message.bytes(true);
+            final long parsed = System.nanoTime();
+            tracer.record(Tracer.Stage.PARSE, parsed - received);
+            peers.forEach((nick, socket) -> {
+                if (nick.equals(origin)) return;
+                final long enqueued = System.nanoTime();
+                tracer.record(Tracer.Stage.ENQUEUE, enqueued - parsed);
+                socket.write(ByteBuffer.wrap(message.bytes(framedPeers.contains(socket))), () -> {
+                    long written = System.nanoTime();
+                    tracer.record(Tracer.Stage.WRITE, written - enqueued);
+                    tracer.record(Tracer.Stage.TOTAL, written - received);
+                });
+            });
+        };
+
+        if (idleTimeout > 0)
+            loop.setInterval(() -> reapIdle(), Math.max(idleTimeout / 4, 1000));
+
+        final Consumer<NetSocket> connection = (socket) -> {
             socket.setKeepAlive(true);
+            long timeout = (socket.getFilter() instanceof TelnetGateway) ? telnetHandshakeTimeout : handshakeTimeout;
+            final EventLoop.Timer handshake = (timeout <= 0) ? null : loop.setTimeout(() -> {
+                handshakeTimeouts++;
+                socket.destroy();
+            }, timeout);
 
             final Readline rl = new Readline(socket);
-            rl.once("line", (String nick) -> {
-                if (!nick.matches("^[a-zA-Z0-9 _.@-]+$")) {
-                    socket.end("Error: Invalid characters in nickname\n");
+            final Consumer<String> join = (String nick) -> {
+                final boolean framed = framedPeers.contains(socket);
+                if (!Protocol.isValidNick(nick)) {
+                    socket.end(Protocol.error("Invalid characters in nickname", framed));
                     return;
                 }
                 if (peers.containsKey(nick)) {
-                    socket.end("Error: Nickname '" + nick + "' already in use\n");
+                    socket.end(Protocol.error("Nickname '" + nick + "' already in use", framed));
                     return;
                 }
 
-                broadcast.accept(nick, "[" + nick + " joined the room]\n");
+                if (handshake != null)
+                    handshake.cancel();
+                broadcast.accept(nick, Protocol.joined(nick));
                 peers.put(nick, socket);
-                socket.write("[current participants: " + String.join(", ", peers.keySet()) + "]\n");
-                rl.on("line", (message) -> broadcast.accept(nick, nick + ": " + message + "\n"));
-                rl.on("close", () -> {
-                  peers.remove(nick);
-                  broadcast.accept(nick, "[" + nick + " left the room]\n");
+                // Framed clients get the count and the first page, and can request the rest
+                if (framed) {
+                    socket.write(Protocol.participantCount(peers.size()));
+                    socket.write(Protocol.participants(Protocol.page(peers.navigableKeySet(), null)));
+                } else {
+                    Protocol.writeLegacyParticipants(peers.keySet(), socket::write);
+                }
+                if (history != null && history.getSize() > 0)
+                    socket.write(history.replay(framed));
+                final TokenBucket messageBucket = (messageRate > 0) ? new TokenBucket(messageRate, messageRate * RATE_BURST) : null;
+                final TokenBucket byteBucket = (byteRate > 0) ? new TokenBucket(byteRate, byteRate * RATE_BURST) : null;
+                rl.on("line", (String message) -> {
+                    // Process the line, but don't read more until the peer is within its limits
+                    long wait = 0;
+                    if (messageBucket != null)
+                        wait = messageBucket.take(1);
+                    if (byteBucket != null)
+                        wait = Math.max(wait, byteBucket.take(rl.getLineSize()));
+                    if (wait > 0) {
+                        throttled++;
+                        socket.pause();
+                        rl.pause();
+                        loop.setTimeout(() -> {
+                            if (peers.get(nick) != socket) return;
+                            socket.resume();
+                            rl.resume();
+                        }, (wait + 999999) / 1000000);
+                    }
+
+                    if (framed && Protocol.isCommand(message)) {
+                        command(socket, rl, nick, message);
+                        return;
+                    }
+                    if (framed)
+                        message = Protocol.unescape(message);
+                    Protocol.Encoded encoded = Protocol.message(nick, message);
+                    if (history != null)
+                        history.add(encoded.bytes(false), encoded.bytes(true));
+                    if (chatLog != null)
+                        chatLog.append(System.currentTimeMillis(), encoded.bytes(true));
+                    (tracer != null ? tracedBroadcast : broadcast).accept(nick, encoded);
                 });
+                Runnable leave = () -> {
+                    if (!peers.remove(nick, socket)) return;
+                    broadcast.accept(nick, Protocol.left(nick));
+                };
+                rl.on("close", leave);
+                socket.on("close", leave);
+            };
+            // The client may negotiate the protocol version before sending the nickname
+            rl.once("line", (String line) -> {
+                if (!Protocol.isHello(line)) {
+                    join.accept(line);
+                    return;
+                }
+                boolean deflate = compression && Protocol.helloOptions(line).contains(Protocol.DEFLATE);
+                framedPeers.add(socket);
+                socket.write(Protocol.hello(deflate));
+                if (deflate)
+                    socket.enableCompression();
+                rl.once("line", join);
             });
 
+            socket.on("close", () -> {
+                if (handshake != null)
+                    handshake.cancel();
+                framedPeers.remove(socket);
+                // Drop incomplete uploads
+                Upload upload = uploads.remove(socket);
+                if (upload != null) {
+                    if (upload.timer != null)
+                        upload.timer.cancel();
+                    spool.remove(upload.entry);
+                }
+                closedBytesRead += socket.getBytesRead();
+                closedBytesWritten += socket.getBytesWritten();
+            });
             socket.on("error", () -> socket.destroy());
+        };
+        createServer(connection).listen(port, () -> System.out.println("Server listening."));
+        if (tls != null) {
+            NetServer secureServer = createServer(connection);
+            secureServer.setTls(tls);
+            secureServer.listen(tlsPort, () -> System.out.println("Server listening (TLS)."));
+        }
+        if (unixPath != null)
+            createServer(connection).listen(unixPath, () -> System.out.println("Server listening (Unix socket)."));
+        if (telnetPort > 0) {
+            createServer((socket) -> {
+                TelnetGateway.attach(socket);
+                connection.accept(socket);
+            }).listen(telnetPort, () -> System.out.println("Server listening (telnet)."));
+        }
+
+    }
+
+    /** Disconnect the peers that haven't sent anything for longer than the idle timeout **/
+    private void reapIdle() {
+        long limit = System.nanoTime() - idleTimeout * 1000000;
+        for (NetSocket socket : new ArrayList<>(peers.values())) {
+            // (paused peers are being rate-limited, so they're not idle)
+            if (socket.getLastReadTime() - limit >= 0 || socket.isPaused())
+                continue;
+            idleTimeouts++;
+            socket.write(Protocol.error("Disconnected for being idle", framedPeers.contains(socket)));
+            socket.destroy();
+        }
+    }
+
+    /** Handle a command from a framed client **/
+    private void command(NetSocket socket, Readline rl, String nick, String line) {
+        int i = line.indexOf(' ');
+        String name = (i == -1) ? line : line.substring(0, i);
+        String argument = (i == -1) ? null : line.substring(i + 1);
+        if (name.equals(Protocol.NAMES) && argument != null) {
+            socket.write(Protocol.participants(Protocol.page(peers.navigableKeySet(), argument)));
+        } else if (name.equals(Protocol.LOG) && argument != null) {
+            replayLog(socket, argument);
+        } else if (name.equals(Protocol.OFFER) && argument != null) {
+            offer(socket, rl, nick, argument);
+        } else if (name.equals(Protocol.FETCH) && argument != null) {
+            fetch(socket, argument);
+        } else {
+            socket.write(Protocol.info("Unknown command " + name).framed);
+        }
+    }
+
+    /**
+     * Send the logged messages in the requested range. They're queued as
+     * file regions, so they're transferred from the log as the socket
+     * becomes writable, without being read into memory.
+     */
+    private void replayLog(NetSocket socket, String argument) {
+        if (chatLog == null) {
+            socket.write(Protocol.info("No chat log").framed);
+            return;
+        }
+        String[] range = argument.split(" ");
+        long from, to;
+        try {
+            from = ChatLog.parseTime(range[0]);
+            to = (range.length > 1) ? ChatLog.parseTime(range[1]) : Long.MAX_VALUE;
+        } catch (RuntimeException ex) {
+            socket.write(Protocol.info("Invalid time range").framed);
+            return;
+        }
+        List<ChatLog.Region> regions = chatLog.regions(from, to);
+        for (ChatLog.Region region : regions)
+            socket.write(region.channel, region.position, region.count, region::release);
+        // (regions still queued when the socket closes won't be written)
+        socket.on("close", () -> regions.forEach(ChatLog.Region::release));
+        socket.write(Protocol.info(Protocol.END_OF_LOG).framed);
+    }
+
+    /**
+     * Receive an offered file into the spool, and offer it to the room once
+     * it's complete. Files that can't be accepted are read and discarded.
+     */
+    private void offer(NetSocket socket, Readline rl, String nick, String argument) {
+        int i = argument.indexOf(' ');
+        long size;
+        try {
+            size = Long.parseLong((i == -1) ? argument : argument.substring(0, i));
+            if (size < 0) throw new NumberFormatException();
+        } catch (NumberFormatException ex) {
+            // (the contents can't be skipped without knowing their size)
+            socket.end(Protocol.error("Invalid file offer", true));
+            return;
+        }
+        String name = (i == -1) ? "file" : argument.substring(i + 1);
+
+        String rejection = null;
+        if (spool == null)
+            rejection = "File transfers are disabled";
+        else if (size > maxFileSize)
+            rejection = "File too big (limit is " + maxFileSize + " bytes)";
+        else if (spool.getSize() + size > spoolBudget)
+            rejection = "No space left for files, try again later";
+        if (rejection != null) {
+            final String reply = Protocol.info(rejection).framed;
+            rl.raw(size, (data) -> {}, () -> socket.write(reply));
+            return;
+        }
+
+        final Spool.Entry entry = spool.create(nick, name, size);
+        final Upload upload = new Upload(entry);
+        uploads.put(socket, upload);
+        if (uploadTimeout > 0)
+            upload.timer = loop.setTimeout(() -> checkUpload(socket, upload), uploadTimeout);
+        rl.raw(size, (data) -> {
+            entry.write(data);
+            upload.lastProgress = System.nanoTime();
+        }, () -> {
+            uploads.remove(socket);
+            if (upload.timer != null)
+                upload.timer.cancel();
+            Protocol.Encoded offer = Protocol.offer(entry.id, nick, entry.size, entry.name);
+            peers.forEach((peer, peerSocket) ->
+                    peerSocket.write(ByteBuffer.wrap(offer.bytes(framedPeers.contains(peerSocket)))));
+            loop.setTimeout(() -> spool.remove(entry), fileLifetime);
         });
-        server.listen(port, () -> System.out.println("Server listening."));
+    }
+
+    /** File being received from a peer **/
+    private static class Upload {
+        final Spool.Entry entry;
+        long lastProgress = System.nanoTime();
+        EventLoop.Timer timer;
 
+        Upload(Spool.Entry entry) {
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Close the connection if its upload hasn't received data for longer
+     * than the upload timeout (the close handler drops the upload).
+     * Otherwise, check again when it could expire.
+     */
+    private void checkUpload(NetSocket socket, Upload upload) {
+        if (uploads.get(socket) != upload) return;
+        // (paused peers are being rate-limited, so they're not stalled)
+        if (socket.isPaused())
+            upload.lastProgress = System.nanoTime();
+        long remaining = uploadTimeout - (System.nanoTime() - upload.lastProgress) / 1000000;
+        if (remaining > 0) {
+            upload.timer = loop.setTimeout(() -> checkUpload(socket, upload), remaining);
+            return;
+        }
+        uploadTimeouts++;
+        socket.write(Protocol.error("Upload timed out", true));
+        socket.destroy();
+    }
+
+    /**
+     * Send a spooled file. It's queued as a file region, so it's
+     * transferred as the socket becomes writable, without going through
+     * the Java heap.
+     */
+    private void fetch(NetSocket socket, String id) {
+        Spool.Entry entry = (spool != null) ? spool.get(id) : null;
+        if (entry == null) {
+            socket.write(Protocol.info("Unknown file " + id).framed);
+            return;
+        }
+        socket.write(Protocol.file(entry.id, entry.size));
+        socket.write(entry.getChannel(), 0, entry.size, null);
+    }
+
+    /**
+     * Register MBeans for the server (see {@link ServerMXBean}) and its event
+     * loop in the platform MBean server. Must be called from the loop,
+     * after the server is started.
+     */
+    public void registerMBeans() {
+        loop.registerMBean("p3:type=EventLoop");
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new ServerMXBean() {
+                public int getConnections() { return loop.query(() -> peers.size()); }
+                public long getBytesRead() {
+                    return loop.query(() -> closedBytesRead
+                            + peers.values().stream().mapToLong(NetSocket::getBytesRead).sum());
+                }
+                public long getBytesWritten() {
+                    return loop.query(() -> closedBytesWritten
+                            + peers.values().stream().mapToLong(NetSocket::getBytesWritten).sum());
+                }
+                public long getQueuedBytes() {
+                    return loop.query(() -> peers.values().stream().mapToLong(NetSocket::getQueuedBytes).sum());
+                }
+                public int getMaxQueueLength() {
+                    return loop.query(() -> peers.values().stream().mapToInt(NetSocket::getQueueLength).max().orElse(0));
+                }
+                public long getThrottled() { return loop.query(() -> throttled); }
+                public long getHandshakeTimeouts() { return loop.query(() -> handshakeTimeouts); }
+                public long getIdleTimeouts() { return loop.query(() -> idleTimeouts); }
+                public long getUploadTimeouts() { return loop.query(() -> uploadTimeouts); }
+                public String getPeerSnapshot() { return loop.query(() -> peerSnapshot()); }
+            }, new ObjectName("p3:type=Server"));
+        } catch (Exception ex) {
+            throw new RuntimeException("Couldn't register MBean", ex);
+        }
+    }
+
+    /** Text report of the connected peers, one per line. Must be called from the loop **/
+    public String peerSnapshot() {
+        StringBuilder result = new StringBuilder();
+        peers.forEach((nick, socket) -> result.append(nick).append(": ").append(socket).append('\n'));
+        return result.toString();
     }
 
     public static void main(String[] args) {
         Server server = new Server(3500);
-        new EventLoop(server).run();
+        server.setHistoryDepth(Integer.getInteger("chat.history", 0));
+        String log = System.getProperty("chat.log");
+        if (log != null) {
+            ChatLog chatLog = new ChatLog(Paths.get(log));
+            chatLog.setCommitInterval(Long.getLong("chat.log.commit", 1000));
+            server.setChatLog(chatLog);
+        }
+        String spool = System.getProperty("chat.spool");
+        server.setSpool((spool != null) ? new Spool(Paths.get(spool)) : null);
+        server.setFileLimits(Long.getLong("chat.files.max", 64 << 20), Long.getLong("chat.files.budget", 1L << 30));
+        server.setUploadTimeout(Long.getLong("chat.files.timeout", 30000));
+        server.setRateLimit(Double.parseDouble(System.getProperty("chat.rate.messages", "0")),
+                Double.parseDouble(System.getProperty("chat.rate.bytes", "0")));
+        server.setHandshakeTimeout(Long.getLong("chat.timeout.handshake", 0));
+        server.setIdleTimeout(Long.getLong("chat.timeout.idle", 0));
+        String keyStore = System.getProperty("chat.tls.keystore");
+        if (keyStore != null) {
+            TlsContext tls = TlsContext.forServer(Paths.get(keyStore),
+                    System.getProperty("chat.tls.password", "").toCharArray());
+            server.setTls(tls, Integer.getInteger("chat.tls.port", 3501));
+        }
+        String unix = System.getProperty("chat.unix");
+        if (unix != null)
+            server.setUnixSocket(Paths.get(unix));
+        server.setTelnet(Integer.getInteger("chat.telnet.port", 0));
+        server.setTelnetHandshakeTimeout(Long.getLong("chat.telnet.timeout.handshake", 300000));
+        server.setCompression(Boolean.parseBoolean(System.getProperty("chat.deflate.allow", "true")));
+        server.setTracing(Integer.getInteger("chat.trace", 0));
+        new EventLoop(() -> {
+            server.run();
+            server.registerMBeans();
+        }).run();
     }
 
 
@@ -121,33 +641,119 @@ public class Server implements Runnable {
 
     public static class NetSocket extends EventEmitter {
         private final SocketChannel s;
-        private final Queue<ByteBuffer> sendQueue = new LinkedList<>();
+        /** Queued writes: buffers, file regions, or null for EOF **/
+        private final Queue<Object> sendQueue = new LinkedList<>();
+        private final Queue<Runnable> sendCallbacks = new LinkedList<>();
+        private long lastRead;
+        private long bytesRead, bytesWritten, queuedBytes;
+        private boolean destroyed = false;
         private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(2048);
         private boolean inputEnd = false, outputEnd = false;
+        private boolean connecting = false;
+        private boolean paused = false;
+        private final boolean unixDomain;
+        /** TLS state, if {@link #startTls} was called **/
+        private TlsContext tls;
+        private SSLEngine engine;
+        /**
+         * Received data not decrypted yet, and encrypted data not written
+         * yet. They're taken from the pool when needed, and returned when empty.
+         */
+        private ByteBuffer netIn, netOut;
+        private boolean secure = false;
+        private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+        /** Compression state, if {@link #enableCompression} was called **/
+        private DeflateCodec codec;
+        private boolean compressing = false;
+        /** Uncompressed piece of the current item, and its compressed data not written yet **/
+        private byte[] compressBuffer;
+        private ByteBuffer compressed;
+        /** Queued by {@link #enableCompression}, to start compressing after the data queued before **/
+        private static final ByteBuffer START_COMPRESSION = ByteBuffer.allocate(0);
+        private Filter filter;
 
         public NetSocket(SocketChannel s) {
             try {
                 this.s = s;
+                this.unixDomain = UnixSockets.isUnix(s);
                 s.configureBlocking(false);
-                currentLoop().register(s, OP_READ, () -> readHandler());
-                currentLoop().register(s, OP_WRITE, () -> writeHandler());
-                currentLoop().setActive(s, OP_WRITE, false);
+                if (s.isConnectionPending()) {
+                    connecting = true;
+                    currentLoop().register(s, OP_CONNECT, () -> connectHandler());
+                } else {
+                    registerHandlers();
+                }
             } catch (IOException ex) {
                 throw new RuntimeException(ex);
             }
         }
 
+        private void registerHandlers() {
+            currentLoop().register(s, OP_READ, () -> readHandler());
+            currentLoop().register(s, OP_WRITE, () -> writeHandler());
+            currentLoop().setActive(s, OP_WRITE, false);
+        }
+
+        private void connectHandler() {
+            try {
+                if (!s.finishConnect()) return;
+                connecting = false;
+                currentLoop().setActive(s, OP_CONNECT, false);
+                registerHandlers();
+                emit("connect");
+            } catch (IOException ex) {
+                currentLoop().setActive(s, OP_CONNECT, false);
+                emit("error", ex);
+                connecting = false;
+            }
+        }
+
+        /** Whether the socket is still connecting (see {@link Server#createConnection}) **/
+        public boolean isConnecting() {
+            return connecting;
+        }
+
+        /** Close the socket immediately. Emits "close" (only once) **/
         public void destroy() {
+            if (destroyed) return;
+            destroyed = true;
             try {
+                currentLoop().unregister(s);
                 s.close();
             } catch (IOException ex) {
                 throw new RuntimeException(ex);
             }
+            if (netIn != null) tls.release(netIn);
+            if (netOut != null) tls.release(netOut);
+            netIn = netOut = null;
+            if (codec != null) codec.end();
+            emit("close");
         }
 
         private void readHandler() {
             try {
-                while (true) {
+                while (!paused && !inputEnd) {
+                    if (engine != null) {
+                        if (netIn == null) netIn = tls.acquire();
+                        int r = s.read(netIn);
+                        if (r > 0) {
+                            lastRead = System.nanoTime();
+                            bytesRead += r;
+                        }
+                        // (there may be records left from before a pause)
+                        unwrap();
+                        if (r == -1 && !inputEnd) {
+                            try {
+                                engine.closeInbound();
+                            } catch (SSLException ex) {
+                                // The peer didn't send close_notify, treat it as a normal EOF
+                            }
+                            inputEnded();
+                        }
+                        if (r <= 0) return;
+                        continue;
+                    }
+
                     readBuffer.clear();
                     int r = s.read(readBuffer);
                     if (r == -1) {
@@ -158,10 +764,12 @@ public class Server implements Runnable {
                     }
                     if (r <= 0) return;
 
+                    lastRead = System.nanoTime();
+                    bytesRead += r;
                     readBuffer.flip();
                     byte[] chunk = new byte[readBuffer.limit()];
                     readBuffer.get(chunk);
-                    emit("data", chunk);
+                    received(chunk);
                 }
             } catch (IOException ex) {
                 emit("error", ex);
@@ -169,9 +777,373 @@ public class Server implements Runnable {
             currentLoop().setActive(s, OP_READ, false);
         }
 
-        private boolean doWrite(ByteBuffer buf) throws IOException {
-            if (buf != null) {
-                s.write(buf);
+        /** Part of a file queued for writing **/
+        private static class FileRegion {
+            final FileChannel channel;
+            long position;
+            final long end;
+
+            FileRegion(FileChannel channel, long position, long count) {
+                this.channel = channel;
+                this.position = position;
+                this.end = position + count;
+            }
+        }
+
+        private static long remaining(Object item) {
+            if (item instanceof FileRegion)
+                return ((FileRegion) item).end - ((FileRegion) item).position;
+            return (item != null) ? ((ByteBuffer) item).remaining() : 0;
+        }
+
+        /** Emit received data, decompressing it (in pieces) if needed **/
+        private void received(byte[] chunk) throws IOException {
+            if (codec != null) {
+                try {
+                    codec.decompress(chunk, this::decompressed);
+                } catch (DataFormatException ex) {
+                    throw new IOException("Invalid compressed data", ex);
+                }
+                return;
+            }
+            decompressed(chunk);
+        }
+
+        private void decompressed(byte[] chunk) {
+            if (filter != null) {
+                chunk = filter.decode(chunk);
+                if (chunk == null || chunk.length == 0) return;
+            }
+            emit("data", chunk);
+        }
+
+        private void inputEnded() {
+            emit("end");
+            inputEnd = true;
+            if (outputEnd) destroy();
+            end();
+        }
+
+        /**
+         * Stop reading and end the input as if the peer had ended it: emits
+         * "end", and ends the output once the data queued so far is written.
+         * Meant for filters that end the session on the peer's behalf.
+         */
+        public void endInput() {
+            if (inputEnd || destroyed) return;
+            currentLoop().setActive(s, OP_READ, false);
+            inputEnded();
+        }
+
+        // TLS
+
+        /**
+         * Start a TLS session on the socket: from now on, data emitted and
+         * written is plaintext. Must be called before any data is read or
+         * written (for outgoing connections, once connected). Emits
+         * "secure" once the handshake completes; data written before that
+         * is queued.
+         *
+         * Handshake tasks (such as verifying certificates) are run in the
+         * loop, so they block it for a bit.
+         */
+        public void startTls(TlsContext context, boolean client) {
+            SocketAddress address = remoteAddress();
+            InetSocketAddress peer = (address instanceof InetSocketAddress) ? (InetSocketAddress) address : null;
+            // Each handshake message is written as soon as it's produced,
+            // Nagle's algorithm would hold all but the first one
+            setNoDelay(true);
+            tls = context;
+            engine = (client && peer != null)
+                    ? context.createEngine(true, peer.getHostString(), peer.getPort())
+                    : context.createEngine(client, null, 0);
+            try {
+                engine.beginHandshake();
+                handshake();
+            } catch (IOException ex) {
+                currentLoop().nextTick(() -> emit("error", ex));
+            }
+        }
+
+        /** Whether the TLS handshake has completed **/
+        public boolean isSecure() {
+            return secure;
+        }
+
+        /** The TLS engine, or null if TLS isn't being used **/
+        public SSLEngine getEngine() {
+            return engine;
+        }
+
+        /** Advance the handshake, as long as it's waiting for us **/
+        private void handshake() throws IOException {
+            while (true) {
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null)
+                            task.run();
+                        break;
+                    case NEED_WRAP:
+                        if (!wrap(EMPTY)) {
+                            currentLoop().setActive(s, OP_WRITE, true);
+                            return;
+                        }
+                        if (engine.isOutboundDone()) return;
+                        break;
+                    default:
+                        return;
+                }
+            }
+        }
+
+        private void checkFinished(SSLEngineResult result) {
+            if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED || secure)
+                return;
+            secure = true;
+            if (!sendQueue.isEmpty())
+                currentLoop().setActive(s, OP_WRITE, true);
+            currentLoop().nextTick(() -> emit("secure"));
+        }
+
+        /** Decrypt the received records and emit their data **/
+        private void unwrap() throws IOException {
+            netIn.flip();
+            try {
+                while (!paused && !inputEnd && !destroyed) {
+                    ByteBuffer app = tls.acquire();
+                    SSLEngineResult result;
+                    byte[] chunk = null;
+                    try {
+                        result = engine.unwrap(netIn, app);
+                        if (app.position() > 0) {
+                            app.flip();
+                            chunk = new byte[app.remaining()];
+                            app.get(chunk);
+                        }
+                    } finally {
+                        tls.release(app);
+                    }
+                    checkFinished(result);
+                    if (chunk != null)
+                        received(chunk);
+                    switch (result.getStatus()) {
+                        case CLOSED:
+                            // The peer sent close_notify
+                            inputEnded();
+                            return;
+                        case BUFFER_UNDERFLOW:
+                            return;
+                        case BUFFER_OVERFLOW:
+                            throw new SSLException("Record bigger than the buffers");
+                    }
+                    handshake();
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                            && engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_UNWRAP)
+                        return;
+                }
+            } finally {
+                if (netIn != null) {
+                    netIn.compact();
+                    if (netIn.position() == 0) {
+                        tls.release(netIn);
+                        netIn = null;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Encrypt data from {@code src} into a record and write it.
+         *
+         * @return false if the socket couldn't take it all (the rest stays
+         *         in {@code netOut}, and must be written first).
+         * @throws SSLException If the engine is closed and {@code src}
+         *         can't be sent (otherwise callers would retry forever).
+         */
+        private boolean wrap(ByteBuffer src) throws IOException {
+            if (!flush()) return false;
+            netOut = tls.acquire();
+            SSLEngineResult result = engine.wrap(src, netOut);
+            netOut.flip();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED && src.hasRemaining()) {
+                tls.release(netOut);
+                netOut = null;
+                throw new SSLException("TLS connection closed, can't write more data");
+            }
+            checkFinished(result);
+            return flush();
+        }
+
+        /** Write the pending encrypted data. Returns true if there's none left. **/
+        private boolean flush() throws IOException {
+            if (netOut == null) return true;
+            bytesWritten += s.write(netOut);
+            if (netOut.hasRemaining()) return false;
+            tls.release(netOut);
+            netOut = null;
+            return true;
+        }
+
+        private boolean doWriteTls(Object item) throws IOException {
+            if (!flush() || !secure) return false;
+            if (item == null) {
+                engine.closeOutbound();
+                while (!engine.isOutboundDone())
+                    if (!wrap(EMPTY)) return false;
+                s.shutdownOutput();
+                outputEnd = true;
+                if (inputEnd) destroy();
+                return true;
+            }
+            if (item instanceof FileRegion) {
+                // Files can't be sent with transferTo, they have to be encrypted
+                FileRegion region = (FileRegion) item;
+                while (region.position < region.end) {
+                    ByteBuffer plain = tls.acquire();
+                    boolean flushed;
+                    try {
+                        plain.limit((int) Math.min(plain.capacity(), region.end - region.position));
+                        if (region.channel.read(plain, region.position) <= 0)
+                            throw new IOException("File region past the end of the file");
+                        plain.flip();
+                        flushed = wrap(plain);
+                        region.position += plain.position();
+                    } finally {
+                        tls.release(plain);
+                    }
+                    if (!flushed) return false;
+                }
+                return true;
+            }
+            ByteBuffer buf = (ByteBuffer) item;
+            while (buf.hasRemaining())
+                if (!wrap(buf)) return false;
+            return true;
+        }
+
+        // COMPRESSION
+
+        /**
+         * Compress the data written from now on (once the data already
+         * queued is written), and decompress the data received from now on.
+         * See {@link DeflateCodec}. Works on top of TLS, if any.
+         */
+        public void enableCompression() {
+            codec = new DeflateCodec();
+            compressBuffer = new byte[16384];
+            writeItem(START_COMPRESSION, null);
+        }
+
+        /** Compression codec (with its statistics), or null if not compressing **/
+        public DeflateCodec getCodec() {
+            return codec;
+        }
+
+        /** Compress the item in pieces, writing each one before compressing the next **/
+        private boolean doWriteCompressed(Object item) throws IOException {
+            while (true) {
+                if (compressed != null) {
+                    if (!doWriteRaw(compressed)) return false;
+                    compressed = null;
+                }
+                if (remaining(item) == 0) return true;
+                int n;
+                if (item instanceof FileRegion) {
+                    FileRegion region = (FileRegion) item;
+                    ByteBuffer piece = ByteBuffer.wrap(compressBuffer, 0,
+                            (int) Math.min(compressBuffer.length, region.end - region.position));
+                    n = region.channel.read(piece, region.position);
+                    if (n <= 0)
+                        throw new IOException("File region past the end of the file");
+                    region.position += n;
+                } else {
+                    ByteBuffer buf = (ByteBuffer) item;
+                    n = Math.min(compressBuffer.length, buf.remaining());
+                    buf.get(compressBuffer, 0, n);
+                }
+                compressed = ByteBuffer.wrap(codec.compress(compressBuffer, 0, n));
+            }
+        }
+
+        // FILTER
+
+        /**
+         * Protocol handler between the socket and its users, such as
+         * {@link TelnetGateway}. It sees the received data (decrypted and
+         * decompressed) before it's emitted, and the data written before
+         * it's queued (except file regions).
+         */
+        public interface Filter {
+            /** Received data, returns the data to emit (or null) **/
+            byte[] decode(byte[] data);
+
+            /** Written data, returns the data to send **/
+            ByteBuffer encode(ByteBuffer data);
+        }
+
+        /** Pass the data through a filter from now on **/
+        public void setFilter(Filter filter) {
+            this.filter = filter;
+        }
+
+        public Filter getFilter() {
+            return filter;
+        }
+
+        /** Write data bypassing the filter, for the filter's own output **/
+        public boolean writeUnfiltered(ByteBuffer buf) {
+            return writeItem(buf, null);
+        }
+
+        // FLOW CONTROL
+
+        /** Stop reading from the socket (and emitting "data") until {@link #resume} is called **/
+        public void pause() {
+            if (paused) return;
+            paused = true;
+            if (!destroyed)
+                currentLoop().setActive(s, OP_READ, false);
+        }
+
+        public void resume() {
+            if (!paused) return;
+            paused = false;
+            if (!destroyed && !inputEnd) {
+                currentLoop().setActive(s, OP_READ, true);
+                // (decrypted records may be buffered, which won't make the socket readable)
+                if (netIn != null)
+                    currentLoop().nextTick(() -> readHandler());
+            }
+        }
+
+        public boolean isPaused() {
+            return paused;
+        }
+
+        private boolean doWrite(Object item) throws IOException {
+            if (item == START_COMPRESSION) {
+                compressing = true;
+                return true;
+            }
+            if (compressing && item != null)
+                return doWriteCompressed(item);
+            return doWriteRaw(item);
+        }
+
+        private boolean doWriteRaw(Object item) throws IOException {
+            if (engine != null)
+                return doWriteTls(item);
+            if (item instanceof FileRegion) {
+                FileRegion region = (FileRegion) item;
+                long written = region.channel.transferTo(region.position, region.end - region.position, s);
+                region.position += written;
+                bytesWritten += written;
+                return region.position == region.end;
+            }
+            if (item != null) {
+                ByteBuffer buf = (ByteBuffer) item;
+                bytesWritten += s.write(buf);
                 return buf.remaining() == 0;
             }
             s.shutdownOutput(); //FIXME: does this block?
@@ -182,10 +1154,26 @@ public class Server implements Runnable {
 
         private void writeHandler() {
             try {
+                if (engine != null) {
+                    if (!flush()) return;
+                    handshake();
+                    if (netOut != null) return;
+                    if (!secure) {
+                        // (queued data is written once the handshake finishes)
+                        currentLoop().setActive(s, OP_WRITE, false);
+                        return;
+                    }
+                }
                 while (!sendQueue.isEmpty()) {
-                    if (!doWrite(sendQueue.peek()))
+                    Object item = sendQueue.peek();
+                    long remaining = remaining(item);
+                    boolean done = doWrite(item);
+                    queuedBytes -= remaining - remaining(item);
+                    if (!done)
                         return;
                     sendQueue.remove();
+                    Runnable callback = sendCallbacks.remove();
+                    if (callback != null) callback.run();
                 }
             } catch (IOException ex) {
                 emit("error", ex);
@@ -193,19 +1181,89 @@ public class Server implements Runnable {
             currentLoop().setActive(s, OP_WRITE, false);
         }
 
-        public boolean write(ByteBuffer buf) {
+        /**
+         * Write data to the socket, queueing it if it can't be written now.
+         *
+         * @param buf Data to write, or {@code null} to end the output.
+         * @param callback If not {@code null}, called once the data has been
+         * completely written (which may happen before this method returns).
+         * @return {@code true} if the data was written immediately.
+         */
+        public boolean write(ByteBuffer buf, Runnable callback) {
+            if (filter != null && buf != null)
+                buf = filter.encode(buf);
+            return writeItem(buf, callback);
+        }
+
+        /**
+         * Write part of a file to the socket with {@link FileChannel#transferTo},
+         * as the socket becomes writable. The region must be within the file,
+         * and the channel must stay open until it's written.
+         *
+         * @see #write(ByteBuffer, Runnable)
+         */
+        public boolean write(FileChannel file, long position, long count, Runnable callback) {
+            return writeItem(new FileRegion(file, position, count), callback);
+        }
+
+        private boolean writeItem(Object item, Runnable callback) {
             if (outputEnd)
                 throw new IllegalArgumentException("Socket closed for output");
             if (sendQueue.isEmpty()) {
                 try {
-                    if (doWrite(buf))
+                    if (doWrite(item)) {
+                        if (callback != null) callback.run();
                         return true;
+                    }
+                } catch (IOException ex) {
+                    currentLoop().nextTick(() -> emit("error", ex));
+                }
+                currentLoop().setActive(s, OP_WRITE, true);
+            }
+            sendQueue.add(item);
+            sendCallbacks.add(callback);
+            queuedBytes += remaining(item);
+            return false;
+        }
+
+        public boolean write(ByteBuffer buf) {
+            return write(buf, null);
+        }
+
+        /**
+         * Write several buffers, with a single gathering write if nothing
+         * is queued. Whatever can't be written now is queued.
+         *
+         * @return {@code true} if the data was written immediately.
+         */
+        public boolean write(ByteBuffer[] bufs) {
+            if (outputEnd)
+                throw new IllegalArgumentException("Socket closed for output");
+            if (engine != null || codec != null || filter != null) {
+                // (the data has to go through the filter, TLS or compression, one buffer at a time)
+                boolean written = true;
+                for (ByteBuffer buf : bufs)
+                    written &= write(buf, null);
+                return written;
+            }
+            int first = 0;
+            if (sendQueue.isEmpty()) {
+                try {
+                    bytesWritten += s.write(bufs);
                 } catch (IOException ex) {
                     currentLoop().nextTick(() -> emit("error", ex));
                 }
+                while (first < bufs.length && !bufs[first].hasRemaining())
+                    first++;
+                if (first == bufs.length)
+                    return true;
                 currentLoop().setActive(s, OP_WRITE, true);
             }
-            sendQueue.add(buf);
+            for (int i = first; i < bufs.length; i++) {
+                sendQueue.add(bufs[i]);
+                sendCallbacks.add(null);
+                queuedBytes += bufs[i].remaining();
+            }
             return false;
         }
 
@@ -228,41 +1286,99 @@ public class Server implements Runnable {
             return end(ByteBuffer.wrap(data.getBytes()));
         }
 
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        /** Number of writes waiting in the send queue **/
+        public int getQueueLength() {
+            return sendQueue.size();
+        }
+
+        /** Bytes waiting in the send queue **/
+        public long getQueuedBytes() {
+            return queuedBytes;
+        }
+
+        /** Address of the peer, or null if closed **/
+        public SocketAddress remoteAddress() {
+            try {
+                return s.getRemoteAddress();
+            } catch (IOException ex) {
+                return null;
+            }
+        }
+
+        /** Whether this is a Unix domain socket **/
+        public boolean isUnixDomain() {
+            return unixDomain;
+        }
+
+        @Override
+        public String toString() {
+            // (local peers have unnamed addresses)
+            return String.format("%s in=%d out=%d queue=%d (%d bytes)", isUnixDomain() ? "unix" : remoteAddress(),
+                    bytesRead, bytesWritten, sendQueue.size(), queuedBytes);
+        }
+
+        /** Time (as given by {@link System#nanoTime()}) of the last read from the socket **/
+        public long getLastReadTime() {
+            return lastRead;
+        }
+
+        /** Ignored for Unix domain sockets, which don't need it **/
         public void setKeepAlive(boolean enabled) {
+            if (isUnixDomain()) return;
             try {
                 s.setOption(StandardSocketOptions.SO_KEEPALIVE, enabled); // FIXME: does this block?
             } catch (IOException ex) {
                 currentLoop().nextTick(() -> emit("error", ex));
             }
         }
-    }
-
-    public static class NetServer extends EventEmitter {
-        private final ServerSocketChannel ss;
 
-        public NetServer() {
+        /** Disable Nagle's algorithm. Ignored for Unix domain sockets, which don't have it **/
+        public void setNoDelay(boolean noDelay) {
+            if (isUnixDomain()) return;
             try {
-                ss = ServerSocketChannel.open();
-                ss.configureBlocking(false);
+                s.setOption(StandardSocketOptions.TCP_NODELAY, noDelay);
             } catch (IOException ex) {
-                throw new RuntimeException(ex);
+                currentLoop().nextTick(() -> emit("error", ex));
             }
         }
+    }
+
+    public static class NetServer extends EventEmitter {
+        private ServerSocketChannel ss;
+        private TlsContext tls;
 
         private void acceptHandler() {
             try {
                 SocketChannel s = ss.accept();
-                if (s != null)
-                    emit("connection", new NetSocket(s));
+                if (s != null) {
+                    NetSocket socket = new NetSocket(s);
+                    if (tls != null)
+                        socket.startTls(tls, false);
+                    emit("connection", socket);
+                }
             } catch (IOException ex) {
                 emit("error", ex);
             }
         }
 
+        /** Use TLS on the accepted connections (see {@link NetSocket#startTls}) **/
+        public void setTls(TlsContext tls) {
+            this.tls = tls;
+        }
+
         public void listen(int port) {
             try {
+                ss = ServerSocketChannel.open();
                 ss.bind(new InetSocketAddress(port)); // FIXME: blocking method: should be performed outside of the loop
-                currentLoop().register(ss, OP_ACCEPT, () -> acceptHandler());
+                listen();
             } catch (IOException ex) {
                 currentLoop().nextTick(() -> emit("error", ex));
             }
@@ -272,12 +1388,44 @@ public class Server implements Runnable {
             listen(port);
             currentLoop().nextTick(callback);
         }
+
+        /**
+         * Listen on a Unix domain socket at the passed path (see
+         * {@link UnixSockets}). Local clients connecting through it skip
+         * the TCP stack. An existing file there is replaced (such as the
+         * socket of a server that crashed), and removed on exit.
+         */
+        public void listen(Path path) {
+            try {
+                Files.deleteIfExists(path);
+                ss = UnixSockets.bind(path);
+                path.toFile().deleteOnExit();
+                listen();
+            } catch (IOException | UnsupportedOperationException ex) {
+                currentLoop().nextTick(() -> emit("error", ex));
+            }
+        }
+
+        public void listen(Path path, Runnable callback) {
+            listen(path);
+            currentLoop().nextTick(callback);
+        }
+
+        private void listen() throws IOException {
+            ss.configureBlocking(false);
+            currentLoop().register(ss, OP_ACCEPT, () -> acceptHandler());
+        }
     }
 
     public static class Readline extends EventEmitter {
         private final EventEmitter source;
         private final Charset charset = StandardCharsets.UTF_8;
         private byte[] last;
+        private int lineSize;
+        private long raw;
+        private Consumer<byte[]> rawSink;
+        private Runnable rawCallback;
+        private boolean paused, ended;
 
         public Readline(EventEmitter source) {
             this.source = source;
@@ -287,6 +1435,11 @@ public class Server implements Runnable {
 
         private void dataHandler(byte[] data) {
             int start = 0, end = 0;
+            if (paused) {
+                // (the buffer may have several lines now, it's scanned again on resume)
+                last = (last != null) ? concat(last, data) : data;
+                return;
+            }
             if (last != null) {
                 end = last.length;
                 last = Arrays.copyOf(last, last.length + data.length);
@@ -295,22 +1448,114 @@ public class Server implements Runnable {
             }
 
             while (true) {
+                if (raw > 0) {
+                    start = end = passRaw(data, start);
+                    if (start == data.length) break;
+                }
                 // Optimization: detect newline byte and decode afterwards
                 while (end < data.length && data[end] != '\n') end++;
                 if (end >= data.length) break;
+                lineSize = end + 1 - start;
                 emit("line", new String(data, start, end - start, charset));
                 start = end = end + 1;
+                if (paused) break;
             }
 
             last = (start < data.length) ? Arrays.copyOfRange(data, start, data.length) : null;
         }
 
+        /**
+         * Pass the next bytes to {@code sink} as they arrive, instead of
+         * splitting them into lines, and then call {@code callback} and
+         * resume emitting lines. Meant to be called from a "line" handler,
+         * for data that follows the line.
+         */
+        public void raw(long count, Consumer<byte[]> sink, Runnable callback) {
+            if (count == 0) {
+                callback.run();
+                return;
+            }
+            raw = count;
+            rawSink = sink;
+            rawCallback = callback;
+        }
+
+        private int passRaw(byte[] data, int start) {
+            int n = (int) Math.min(raw, data.length - start);
+            if (n > 0) {
+                raw -= n;
+                rawSink.accept((start == 0 && n == data.length) ? data : Arrays.copyOfRange(data, start, start + n));
+            }
+            if (raw == 0) {
+                Runnable callback = rawCallback;
+                rawSink = null;
+                rawCallback = null;
+                callback.run();
+            }
+            return start + n;
+        }
+
+        /**
+         * Stop emitting lines until {@link #resume} is called. Data received
+         * in the meantime is buffered, so the source should be paused too.
+         */
+        public void pause() {
+            paused = true;
+        }
+
+        public void resume() {
+            if (!paused) return;
+            paused = false;
+            byte[] data = last;
+            last = null;
+            if (data != null)
+                dataHandler(data);
+            if (ended && !paused)
+                endHandler();
+        }
+
+        private static byte[] concat(byte[] a, byte[] b) {
+            byte[] result = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, result, a.length, b.length);
+            return result;
+        }
+
         private void endHandler() {
-            if (last != null)
+            if (paused) {
+                ended = true;
+                return;
+            }
+            if (last != null) {
+                lineSize = last.length;
                 emit("line", new String(last, charset));
+            }
             emit("close");
         }
 
+        /** Size in bytes of the line being emitted, including the newline **/
+        public int getLineSize() {
+            return lineSize;
+        }
+
+    }
+
+    /**
+     * Start connecting to the passed address. Data must not be written to
+     * the socket until it emits "connect".
+     */
+    public static NetSocket createConnection(SocketAddress address, Runnable connectCallback) {
+        try {
+            SocketChannel s = UnixSockets.isUnix(address) ? UnixSockets.open() : SocketChannel.open();
+            s.configureBlocking(false);
+            boolean connected = s.connect(address);
+            NetSocket result = new NetSocket(s);
+            result.on("connect", connectCallback);
+            if (connected)
+                currentLoop().nextTick(() -> result.emit("connect"));
+            return result;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
     }
 
     public static NetServer createServer(Consumer<NetSocket> connectionCallback) {
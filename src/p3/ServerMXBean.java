@@ -0,0 +1,40 @@
+package p3;
+
+/**
+ * Management interface of the chat {@link Server}.
+ *
+ * @author Alba Mendez
+ */
+public interface ServerMXBean {
+
+    /** Peers in the room **/
+    int getConnections();
+
+    /** Bytes read from all connections (including closed ones) **/
+    long getBytesRead();
+
+    /** Bytes written to all connections (including closed ones) **/
+    long getBytesWritten();
+
+    /** Bytes waiting in the send queues of the peers **/
+    long getQueuedBytes();
+
+    /** Longest send queue (in writes) among the peers **/
+    int getMaxQueueLength();
+
+    /** Times a peer exceeded its rate limit, and reading from it was paused **/
+    long getThrottled();
+
+    /** Connections closed for not sending a nickname in time **/
+    long getHandshakeTimeouts();
+
+    /** Peers disconnected for being idle **/
+    long getIdleTimeouts();
+
+    /** Connections closed for stalling in the middle of an upload **/
+    long getUploadTimeouts();
+
+    /** Text report with the traffic and send queue of each peer **/
+    String getPeerSnapshot();
+
+}
@@ -0,0 +1,137 @@
+package p3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Directory where files offered to the room are kept while they can be
+ * fetched. Each file stays open from upload until it's removed, so it can
+ * be sent to any number of receivers with {@link FileChannel#transferTo}
+ * (which takes explicit positions, so concurrent transfers don't interfere).
+ *
+ * Not thread-safe, it's meant to be used from the event loop.
+ *
+ * @author Alba Mendez
+ */
+public class Spool {
+
+    public static class Entry {
+        public final String id;
+        public final String owner;
+        public final String name;
+        public final long size;
+        private final Path path;
+        private final FileChannel channel;
+        private long written;
+
+        Entry(String id, String owner, String name, long size, Path path) throws IOException {
+            this.id = id;
+            this.owner = owner;
+            this.name = name;
+            this.size = size;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        /** Whether the whole file has been uploaded **/
+        public boolean isComplete() {
+            return written == size;
+        }
+
+        /** Append uploaded data **/
+        public void write(byte[] data) {
+            if (written + data.length > size)
+                throw new IllegalArgumentException("More data than announced");
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(data);
+                while (buf.hasRemaining())
+                    written += channel.write(buf, written);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    private final Path directory;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private long nextId = 1;
+    private long size;
+
+    public Spool(Path directory) {
+        this.directory = directory;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldn't create spool directory", ex);
+        }
+    }
+
+    /** Create a temporary spool, deleted when the JVM exits **/
+    public static Spool createTemporary() {
+        try {
+            Path directory = Files.createTempDirectory("chat-spool");
+            directory.toFile().deleteOnExit();
+            return new Spool(directory);
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldn't create spool directory", ex);
+        }
+    }
+
+    /** Create an entry for a file that's going to be uploaded **/
+    public Entry create(String owner, String name, long size) {
+        String id = Long.toString(nextId++, 36);
+        Path path = directory.resolve(id);
+        path.toFile().deleteOnExit();
+        try {
+            Entry entry = new Entry(id, owner, name, size, path);
+            entries.put(id, entry);
+            this.size += size;
+            return entry;
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldn't create spool file", ex);
+        }
+    }
+
+    /** Get a (completely uploaded) file, or null **/
+    public Entry get(String id) {
+        Entry entry = entries.get(id);
+        return (entry != null && entry.isComplete()) ? entry : null;
+    }
+
+    /**
+     * Remove a file. Transfers of it still in progress will fail, as its
+     * channel is closed.
+     */
+    public void remove(Entry entry) {
+        if (entries.remove(entry.id) == null) return;
+        size -= entry.size;
+        try {
+            entry.channel.close();
+            Files.deleteIfExists(entry.path);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /** Number of files in the spool (including incomplete uploads) **/
+    public int getCount() {
+        return entries.size();
+    }
+
+    /** Total size of the files in the spool, as announced **/
+    public long getSize() {
+        return size;
+    }
+
+}
@@ -0,0 +1,388 @@
+package p3;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import p3.Server.NetSocket;
+import static p3.EventLoop.currentLoop;
+
+/**
+ * Telnet front-end for the chat, as a {@link NetSocket.Filter}: telnet
+ * users connect to the server itself, which speaks telnet on the same
+ * socket and passes the lines typed to the chat as a legacy peer. (This
+ * replaces the Node.js bridge, which opened a second connection to the
+ * server for each user.)
+ *
+ * <p>The client is asked to edit lines locally (LINEMODE). If it refuses,
+ * or doesn't answer in a second, the gateway echoes and edits the line
+ * itself. Either way, messages are shown above the line being typed,
+ * wrapped to the width of the terminal (NAWS), with control characters
+ * removed so peers can't send escape sequences. Typing {@code :q} leaves.
+ *
+ * Not thread-safe, it's meant to be used from the event loop.
+ *
+ * @author Alba Mendez
+ */
+public class TelnetGateway implements NetSocket.Filter {
+
+    // TELNET constants
+
+    static final int IAC = 0xFF;
+    /* commands */
+    static final int WILL = 0xFB, WONT = 0xFC, DO = 0xFD, DONT = 0xFE, SB = 0xFA, SE = 0xF0;
+    static final int IP = 0xF4, EOF = 0xEC;
+    /* options */
+    static final int ECHO = 0x01, SGA = 0x03, NAWS = 0x1F, LINEMODE = 0x22;
+    /** LINEMODE suboption to set the mode, and the mode with local editing **/
+    static final int LINEMODE_MODE = 0x01, MODE_EDIT = 0x01;
+
+    /** How long to wait for the client to answer the LINEMODE request **/
+    static final long NEGOTIATION_TIMEOUT = 1000;
+
+    private static final String CSI = "\033[";
+    private static final String PROMPT = CSI + "1m> ";
+    private static final String NICK_PROMPT = "Enter your nickname: ";
+
+    private enum State { DATA, IAC, COMMAND, SUBOPTION, SUBOPTION_IAC }
+
+    private final NetSocket socket;
+    private State state = State.DATA;
+    private int command;
+    private final ByteArrayOutputStream suboption = new ByteArrayOutputStream();
+    private EventLoop.Timer negotiation;
+    private boolean negotiating = true;
+    /** Whether we edit the line (otherwise the client does) **/
+    private boolean echoing = false;
+    private int columns = 80;
+    private boolean joined = false, quitting = false;
+
+    /** Line being typed, and input state **/
+    private byte[] line = new byte[128];
+    private int lineLength;
+    private boolean lastCR;
+    /** 1 after ESC, 2 inside an escape sequence (keys we don't handle) **/
+    private int escape;
+
+    /** Lines decoded from the current chunk, to be emitted **/
+    private final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+    /** Incomplete line written by the chat **/
+    private byte[] pending;
+
+    public TelnetGateway(NetSocket socket) {
+        this.socket = socket;
+    }
+
+    /** Install a gateway on a new connection, and start negotiating **/
+    public static TelnetGateway attach(NetSocket socket) {
+        TelnetGateway gateway = new TelnetGateway(socket);
+        socket.setFilter(gateway);
+        gateway.start();
+        return gateway;
+    }
+
+    private void start() {
+        send(IAC, DO, NAWS, IAC, DO, LINEMODE);
+        negotiation = currentLoop().setTimeout(() -> negotiated(false), NEGOTIATION_TIMEOUT);
+        socket.on("close", () -> negotiation.cancel());
+    }
+
+    private void negotiated(boolean linemode) {
+        if (!negotiating) return;
+        negotiating = false;
+        negotiation.cancel();
+        if (linemode) {
+            send(IAC, SB, LINEMODE, LINEMODE_MODE, MODE_EDIT, IAC, SE);
+        } else {
+            // The client has to stop echoing, and send each key as it's typed
+            echoing = true;
+            send(IAC, WILL, ECHO, IAC, WILL, SGA);
+        }
+        sendText(NICK_PROMPT);
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    // INPUT
+
+    @Override
+    public byte[] decode(byte[] data) {
+        decoded.reset();
+        for (byte b : data) {
+            if (quitting) break;
+            int x = b & 0xFF;
+            switch (state) {
+                case DATA:
+                    if (x == IAC)
+                        state = State.IAC;
+                    else
+                        input(x);
+                    break;
+                case IAC:
+                    state = State.DATA;
+                    if (x == IAC) {
+                        input(x);
+                    } else if (x >= WILL && x <= DONT) {
+                        command = x;
+                        state = State.COMMAND;
+                    } else if (x == SB) {
+                        suboption.reset();
+                        state = State.SUBOPTION;
+                    } else if (x == IP || x == EOF) {
+                        quit();
+                    }
+                    break;
+                case COMMAND:
+                    state = State.DATA;
+                    negotiation(command, x);
+                    break;
+                case SUBOPTION:
+                    if (x == IAC)
+                        state = State.SUBOPTION_IAC;
+                    else
+                        suboption.write(x);
+                    break;
+                case SUBOPTION_IAC:
+                    if (x == SE) {
+                        state = State.DATA;
+                        suboption(suboption.toByteArray());
+                    } else {
+                        suboption.write(x);
+                        state = State.SUBOPTION;
+                    }
+                    break;
+            }
+        }
+        return decoded.toByteArray();
+    }
+
+    private void negotiation(int command, int option) {
+        switch (command) {
+            case WILL:
+                if (option == LINEMODE) {
+                    if (negotiating)
+                        negotiated(true);
+                    else if (echoing)
+                        send(IAC, DONT, LINEMODE);
+                } else if (option != NAWS) {
+                    send(IAC, DONT, option);
+                }
+                break;
+            case WONT:
+                if (option == LINEMODE)
+                    negotiated(false);
+                break;
+            case DO:
+                // (if echoing, it's the answer to our WILL)
+                if (!(echoing && (option == ECHO || option == SGA)))
+                    send(IAC, WONT, option);
+                break;
+        }
+    }
+
+    private void suboption(byte[] data) {
+        if (data.length == 5 && (data[0] & 0xFF) == NAWS) {
+            int width = ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+            if (width > 0)
+                columns = width;
+        }
+    }
+
+    /** Process a byte typed by the user **/
+    private void input(int x) {
+        // Lines end with CR LF, CR NUL or just LF
+        if (lastCR) {
+            lastCR = false;
+            if (x == '\n' || x == 0) return;
+        }
+        if (x == '\r' || x == '\n') {
+            lastCR = (x == '\r');
+            if (echoing)
+                sendText("\r\n");
+            line();
+            return;
+        }
+        if (!echoing) {
+            append(x);
+            return;
+        }
+
+        // Edit the line ourselves
+        if (escape > 0) {
+            if (escape == 1 && (x == '[' || x == 'O'))
+                escape = 2;
+            else if (escape == 1 || (x >= 0x40 && x <= 0x7E))
+                escape = 0;
+            return;
+        }
+        switch (x) {
+            case 0x1B: // ESC (arrows and such are ignored)
+                escape = 1;
+                return;
+            case 0x03: // Ctrl+C
+                quit();
+                return;
+            case 0x04: // Ctrl+D
+                if (lineLength == 0) quit();
+                return;
+            case 0x08: case 0x7F: // backspace
+                if (lineLength == 0) return;
+                do lineLength--;
+                while (lineLength > 0 && (line[lineLength] & 0xC0) == 0x80);
+                sendText("\b \b");
+                return;
+            case 0x15: // Ctrl+U
+                lineLength = 0;
+                sendText("\r" + CSI + "K" + (joined ? PROMPT : NICK_PROMPT));
+                return;
+        }
+        if (x < 0x20) return;
+        append(x);
+        write(new byte[] { (byte) x });
+    }
+
+    private void append(int x) {
+        if (lineLength == line.length)
+            line = Arrays.copyOf(line, line.length * 2);
+        line[lineLength++] = (byte) x;
+    }
+
+    /** Pass a complete line to the chat **/
+    private void line() {
+        String text = new String(line, 0, lineLength, StandardCharsets.UTF_8);
+        lineLength = 0;
+        if (!joined) {
+            joined = true;
+            emitLine(text);
+            sendText("Type :q to exit\r\n" + PROMPT);
+            return;
+        }
+        if (text.equals(":q")) {
+            quit();
+            return;
+        }
+        if (!text.isEmpty())
+            emitLine(text);
+        sendText(PROMPT);
+    }
+
+    private void emitLine(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        decoded.write(bytes, 0, bytes.length);
+        decoded.write('\n');
+    }
+
+    /**
+     * Leave the chat, closing the connection once the output is written.
+     * The input is ended after the lines of this chunk have been emitted,
+     * so the chat drops the peer before the output is ended; anything
+     * written in the meantime is discarded.
+     */
+    private void quit() {
+        if (quitting) return;
+        sendText(CSI + "m\r\n");
+        quitting = true;
+        currentLoop().nextTick(() -> socket.endInput());
+    }
+
+    // OUTPUT
+
+    @Override
+    public ByteBuffer encode(ByteBuffer data) {
+        if (quitting) return ByteBuffer.allocate(0);
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        if (pending != null) {
+            byte[] joinedBytes = Arrays.copyOf(pending, pending.length + bytes.length);
+            System.arraycopy(bytes, 0, joinedBytes, pending.length, bytes.length);
+            bytes = joinedBytes;
+            pending = null;
+        }
+        StringBuilder output = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != '\n') continue;
+            render(new String(bytes, start, i - start, StandardCharsets.UTF_8), output);
+            start = i + 1;
+        }
+        if (start < bytes.length)
+            pending = Arrays.copyOfRange(bytes, start, bytes.length);
+        return ByteBuffer.wrap(escape(output.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /** Show a message above the line being typed **/
+    private void render(String message, StringBuilder output) {
+        List<String> lines = wrap(message.replaceAll("\\p{Cntrl}", ""), Math.max(columns - 2, 10));
+        String text = String.join("\r\n  ", lines);
+        if (!joined) {
+            output.append(text).append("\r\n");
+        } else if (echoing) {
+            // We know the line being typed, so clear it and type it again
+            output.append('\r').append(CSI).append('K').append(CSI).append('m').append(text).append("\r\n")
+                    .append(PROMPT).append(new String(line, 0, lineLength, StandardCharsets.UTF_8));
+        } else {
+            // Insert the message above the cursor's line, and go back
+            int n = lines.size();
+            output.append(CSI).append('s').append(CSI).append('m');
+            for (int i = 0; i < n; i++) output.append("\r\n");
+            output.append(CSI).append(n).append('A').append(CSI).append(n).append('L')
+                    .append(text).append("\r\n")
+                    .append(CSI).append('u').append(CSI).append(n).append('B').append(CSI).append("1m");
+        }
+    }
+
+    /** Break text at spaces into lines of at most {@code width} characters **/
+    static List<String> wrap(String text, int width) {
+        List<String> lines = new ArrayList<>();
+        while (text.length() > width) {
+            int cut = text.lastIndexOf(' ', width);
+            if (cut > 0) {
+                lines.add(text.substring(0, cut));
+                text = text.substring(cut + 1);
+            } else {
+                lines.add(text.substring(0, width));
+                text = text.substring(width);
+            }
+        }
+        lines.add(text);
+        return lines;
+    }
+
+    /** Double the IAC bytes in data **/
+    static byte[] escape(byte[] data) {
+        int count = 0;
+        for (byte b : data)
+            if ((b & 0xFF) == IAC) count++;
+        if (count == 0) return data;
+        byte[] result = new byte[data.length + count];
+        int j = 0;
+        for (byte b : data) {
+            result[j++] = b;
+            if ((b & 0xFF) == IAC) result[j++] = b;
+        }
+        return result;
+    }
+
+    private void write(byte[] data) {
+        if (quitting) return;
+        socket.writeUnfiltered(ByteBuffer.wrap(escape(data)));
+    }
+
+    private void sendText(String text) {
+        write(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Send telnet commands **/
+    private void send(int... bytes) {
+        if (quitting) return;
+        byte[] data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++)
+            data[i] = (byte) bytes[i];
+        socket.writeUnfiltered(ByteBuffer.wrap(data));
+    }
+
+}
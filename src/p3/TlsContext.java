@@ -0,0 +1,139 @@
+package p3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * TLS configuration for {@link Server.NetSocket}s, see
+ * {@link Server.NetSocket#startTls}.
+ *
+ * <p>It keeps a pool of the buffers needed to encrypt and decrypt TLS
+ * records. Sockets only hold them while they have records in flight, so
+ * idle connections don't take any (each buffer is a bit over 16KiB, so
+ * allocating them per connection would add up quickly).
+ *
+ * <p>Sessions are cached by the {@link SSLContext}, so reconnecting
+ * clients can resume them with an abbreviated handshake. For client
+ * engines to find the cached sessions, pass the address of the server to
+ * {@link #createEngine}.
+ *
+ * @author Alba Mendez
+ */
+public class TlsContext {
+
+    /** Maximum number of idle buffers kept in the pool **/
+    private static final int MAX_POOLED = 1024;
+
+    private final SSLContext context;
+    private final int bufferSize;
+    private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public TlsContext(SSLContext context) {
+        this.context = context;
+        for (SSLSessionContext sessions : new SSLSessionContext[] {
+                context.getServerSessionContext(), context.getClientSessionContext() }) {
+            sessions.setSessionCacheSize(10000);
+            sessions.setSessionTimeout(24 * 3600);
+        }
+        SSLEngine engine = context.createSSLEngine();
+        this.bufferSize = Math.max(engine.getSession().getPacketBufferSize(),
+                engine.getSession().getApplicationBufferSize());
+    }
+
+    /**
+     * Create a context with the key and certificate at the passed key
+     * store (in PKCS12 or JKS format), to be used by servers.
+     */
+    public static TlsContext forServer(Path keyStore, char[] password) {
+        try (InputStream in = Files.newInputStream(keyStore)) {
+            KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+            store.load(in, password);
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(store, password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            return new TlsContext(context);
+        } catch (IOException | GeneralSecurityException ex) {
+            throw new RuntimeException("Couldn't load key store", ex);
+        }
+    }
+
+    /**
+     * Create a context that trusts the certificates at the passed key
+     * store (such as a self-signed one), to be used by clients.
+     */
+    public static TlsContext forClient(Path trustStore, char[] password) {
+        try (InputStream in = Files.newInputStream(trustStore)) {
+            KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+            store.load(in, password);
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(store);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trust.getTrustManagers(), null);
+            return new TlsContext(context);
+        } catch (IOException | GeneralSecurityException ex) {
+            throw new RuntimeException("Couldn't load trust store", ex);
+        }
+    }
+
+    public SSLContext getContext() {
+        return context;
+    }
+
+    /**
+     * Create an engine for a connection.
+     *
+     * @param client Whether we're the client side.
+     * @param host Host of the peer (for session resumption), or null.
+     * @param port Port of the peer, if {@code host} isn't null.
+     */
+    public SSLEngine createEngine(boolean client, String host, int port) {
+        SSLEngine engine = (host != null) ? context.createSSLEngine(host, port) : context.createSSLEngine();
+        engine.setUseClientMode(client);
+        return engine;
+    }
+
+    // BUFFER POOL
+
+    /** Size of the buffers, enough for any record (encrypted or not) **/
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Take a buffer from the pool (cleared), or allocate one if empty **/
+    ByteBuffer acquire() {
+        ByteBuffer buf = pool.poll();
+        if (buf == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+        pooled.decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    /** Return a buffer to the pool. It must not be used afterwards. **/
+    void release(ByteBuffer buf) {
+        if (pooled.incrementAndGet() <= MAX_POOLED)
+            pool.add(buf);
+        else
+            pooled.decrementAndGet();
+    }
+
+    /** Number of idle buffers in the pool **/
+    public int getPooledBuffers() {
+        return pooled.get();
+    }
+
+}
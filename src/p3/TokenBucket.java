@@ -0,0 +1,52 @@
+package p3;
+
+/**
+ * Token bucket rate limiter. Tokens are added at a fixed rate, up to the
+ * capacity of the bucket (the allowed burst). Taking tokens never fails:
+ * the balance can go negative, and the caller is told how long to wait
+ * until it's paid back. This lets the event loop process what it already
+ * read, and then stop reading for that long.
+ *
+ * Not thread-safe.
+ *
+ * @author Alba Mendez
+ */
+public class TokenBucket {
+
+    private final double rate;
+    private final double capacity;
+    private double tokens;
+    private long last;
+
+    /**
+     * @param rate Tokens added per second.
+     * @param capacity Maximum tokens in the bucket. It starts full.
+     */
+    public TokenBucket(double rate, double capacity) {
+        if (rate <= 0 || capacity <= 0)
+            throw new IllegalArgumentException("Rate and capacity must be positive");
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.last = System.nanoTime();
+    }
+
+    /**
+     * Take tokens from the bucket.
+     *
+     * @return Nanoseconds until the balance is no longer negative, or 0 if
+     *         it isn't.
+     */
+    public long take(double amount) {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - last) / 1e9 * rate);
+        last = now;
+        tokens -= amount;
+        return (tokens >= 0) ? 0 : (long) Math.ceil(-tokens / rate * 1e9);
+    }
+
+    public double getTokens() {
+        return tokens;
+    }
+
+}